@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jakarta.interceptor.InvocationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of {@link SlowCallLogInterceptor} for a call that is below the
+ * threshold, a call that is logged, and a call that is logged with an
+ * exception
+ * <p>
+ * Requires the environment variables {@code BENCHMARK_FAST_THRESHOLD} (ex.
+ * "3600s") and {@code BENCHMARK_SLOW_THRESHOLD} (ex. "always")
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlowCallLogInterceptorBenchmark {
+
+    private static final Object RESULT = "result";
+    private static final Exception FAILURE = new IllegalStateException(null, new IOException("backend is down"));
+
+    private SlowCallLogInterceptor interceptor;
+    private InvocationContext fast;
+    private InvocationContext slow;
+    private InvocationContext slowMdcDelta;
+    private InvocationContext slowMdcEvent;
+    private InvocationContext failing;
+
+    @Setup
+    public void setup() throws Exception {
+        for (Method method : Target.class.getDeclaredMethods()) {
+            String error = SlowCallLogInterceptor.wrapMethod(method);
+            if (error != null)
+                throw new IllegalStateException(error);
+        }
+        SlowCallLogInterceptor.freezeWrappers();
+        interceptor = new SlowCallLogInterceptor();
+        fast = new StubInvocationContext(Target.class.getDeclaredMethod("fast", String.class, int.class), false);
+        slow = new StubInvocationContext(Target.class.getDeclaredMethod("slow", String.class, int.class), false);
+        slowMdcDelta = new StubInvocationContext(Target.class.getDeclaredMethod("slowMdcDelta", String.class, int.class), false);
+        slowMdcEvent = new StubInvocationContext(Target.class.getDeclaredMethod("slowMdcEvent", String.class, int.class), false);
+        failing = new StubInvocationContext(Target.class.getDeclaredMethod("failing", String.class, int.class), true);
+    }
+
+    @Benchmark
+    public Object fastPath() throws Exception {
+        return interceptor.methodInvocation(fast);
+    }
+
+    @Benchmark
+    public Object slowPath() throws Exception {
+        return interceptor.methodInvocation(slow);
+    }
+
+    @Benchmark
+    public Object slowPathMdcDelta() throws Exception {
+        return interceptor.methodInvocation(slowMdcDelta);
+    }
+
+    @Benchmark
+    public Object slowPathMdcEvent() throws Exception {
+        return interceptor.methodInvocation(slowMdcEvent);
+    }
+
+    @Benchmark
+    public Object exceptionPath() {
+        try {
+            return interceptor.methodInvocation(failing);
+        } catch (Exception ex) {
+            return ex;
+        }
+    }
+
+    /**
+     * The annotated methods, these are never called, the
+     * {@link StubInvocationContext} supplies the result
+     */
+    public static class Target {
+
+        @SlowCallLog(env = "BENCHMARK_FAST_THRESHOLD")
+        public String fast(String key, int count) {
+            return key;
+        }
+
+        @SlowCallLog(env = "BENCHMARK_SLOW_THRESHOLD")
+        public String slow(String key, int count) {
+            return key;
+        }
+
+        @SlowCallLog(env = "BENCHMARK_SLOW_THRESHOLD", mdc = SlowCallLog.MdcMode.DELTA)
+        public String slowMdcDelta(String key, int count) {
+            return key;
+        }
+
+        @SlowCallLog(env = "BENCHMARK_SLOW_THRESHOLD", mdc = SlowCallLog.MdcMode.EVENT)
+        public String slowMdcEvent(String key, int count) {
+            return key;
+        }
+
+        @SlowCallLog(env = "BENCHMARK_SLOW_THRESHOLD")
+        public String failing(String key, int count) {
+            return key;
+        }
+    }
+
+    /**
+     * Minimal invocation context, that returns a constant or throws a
+     * preallocated exception
+     */
+    private static class StubInvocationContext implements InvocationContext {
+
+        private final Method method;
+        private final boolean fail;
+        private Object[] parameters;
+
+        private StubInvocationContext(Method method, boolean fail) {
+            this.method = method;
+            this.fail = fail;
+            this.parameters = new Object[] {"some-key", 42};
+        }
+
+        @Override
+        public Object getTarget() {
+            return null;
+        }
+
+        @Override
+        public Object getTimer() {
+            return null;
+        }
+
+        @Override
+        public Method getMethod() {
+            return method;
+        }
+
+        @Override
+        public Constructor<?> getConstructor() {
+            return null;
+        }
+
+        @Override
+        public Object[] getParameters() {
+            return parameters;
+        }
+
+        @Override
+        public void setParameters(Object[] parameters) {
+            this.parameters = parameters;
+        }
+
+        @Override
+        public Map<String, Object> getContextData() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Object proceed() throws Exception {
+            if (fail)
+                throw FAILURE;
+            return RESULT;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of timing with {@link StopWatch}
+ * <p>
+ * All threads share one {@link StopWatch} like a request that fans out its
+ * work, except for {@link #dispose(Blackhole)} where each invocation is a complete
+ * request. Run with 1, 8 and 64 threads by the nested classes.
+ * <p>
+ * Run with {@code -prof gc} to see the allocations per operation.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class StopWatchBenchmark {
+
+    private static final StopWatch.Key SCOPE = StopWatch.key("scope");
+
+    @State(Scope.Benchmark)
+    public static class Request {
+
+        final StopWatch stopWatch = new StopWatch();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadClock {
+
+        StopWatch.ReusableClock clock;
+
+        @Setup
+        public void setup(Request request) {
+            clock = request.stopWatch.clock(SCOPE);
+        }
+    }
+
+    @Benchmark
+    public void timeScope(Request request, Blackhole blackhole) {
+        try (Clock clock = request.stopWatch.time("scope")) {
+            blackhole.consume(clock);
+        }
+    }
+
+    @Benchmark
+    public void timeScopeByKey(Request request, Blackhole blackhole) {
+        try (Clock clock = request.stopWatch.time(SCOPE)) {
+            blackhole.consume(clock);
+        }
+    }
+
+    @Benchmark
+    public void timeScopeReusable(ThreadClock threadClock, Blackhole blackhole) {
+        try (Clock clock = threadClock.clock.start()) {
+            blackhole.consume(clock);
+        }
+    }
+
+    @Benchmark
+    public Object timedSupplier(Request request) {
+        return request.stopWatch.timed("supplier", () -> "value");
+    }
+
+    @Benchmark
+    public Object timedWithExceptions(Request request) throws IOException {
+        return request.stopWatch.timedWithExceptions("checked", () -> "value")
+                .checkFor(IOException.class)
+                .value();
+    }
+
+    @Benchmark
+    public Object timedThrowing(Request request) throws IOException {
+        return request.stopWatch.timedThrowing(SCOPE, StopWatchBenchmark::value);
+    }
+
+    @Benchmark
+    public void dispose(Blackhole blackhole) {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.setMDC("trackingId", "benchmark");
+        try (Clock body = stopWatch.time("body")) {
+            blackhole.consume(body);
+            stopWatch.timed("parse_url", () -> "url");
+            stopWatch.timed("make_tracking_id", () -> "id");
+        }
+        stopWatch.dispose();
+    }
+
+    private static String value() throws IOException {
+        return "value";
+    }
+
+    @Threads(1)
+    public static class OneThread extends StopWatchBenchmark {
+    }
+
+    @Threads(8)
+    public static class EightThreads extends StopWatchBenchmark {
+    }
+
+    @Threads(64)
+    public static class SixtyFourThreads extends StopWatchBenchmark {
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.shared;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single daemon thread for housekeeping
+ * <p>
+ * The thread is started when the first task is scheduled, and stopped by
+ * {@code SlowCallLogExtension} when the container shuts down.
+ * <p>
+ * The one thread used by both slowcalllog and stopwatch, which is why it is
+ * public. Applications have no use for this package.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public final class BackgroundTasks {
+
+    private static final Logger log = LoggerFactory.getLogger(BackgroundTasks.class);
+
+    private static ScheduledExecutorService executor;
+
+    private BackgroundTasks() {
+    }
+
+    /**
+     * Run a task periodically
+     *
+     * @param periodInNs how often the task should run
+     * @param task       the task
+     * @return handle for cancelling the task
+     */
+    public static synchronized ScheduledFuture<?> every(long periodInNs, Runnable task) {
+        return executor().scheduleAtFixedRate(guarded(task), periodInNs, periodInNs, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run a task once, as soon as the thread is free
+     *
+     * @param task the task
+     */
+    public static synchronized void submit(Runnable task) {
+        executor().execute(guarded(task));
+    }
+
+    /**
+     * Stop all tasks
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static ScheduledExecutorService executor() {
+        if (executor == null)
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "slow-call-log-background");
+                thread.setDaemon(true);
+                return thread;
+            });
+        return executor;
+    }
+
+    private static Runnable guarded(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                log.error("Background task failed: {}", ex.getMessage());
+                log.debug("Background task failed: ", ex);
+            }
+        };
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.shared;
+
+import java.util.Locale;
+
+/**
+ * Parsing of durations in configuration values
+ * <p>
+ * Used by both slowcalllog and stopwatch, for their environment variables,
+ * which is why it is public. Applications have no use for this package.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public final class Durations {
+
+    private Durations() {
+    }
+
+    /**
+     * Parse a duration string
+     * <p>
+     * The format is: {number} {unit}, where unit is ns, µs/us, ms, s and
+     * their long forms (ex. "20ms", "1 second")
+     *
+     * @param duration string with content of the type: {number} {unit}
+     * @return number of nanoseconds
+     * @throws IllegalArgumentException if the string isn't a duration
+     */
+    public static long inNs(String duration) throws IllegalArgumentException {
+        try {
+            String[] parts = duration.split("(?=\\D)", 2);
+            if (parts.length != 2)
+                throw new IllegalArgumentException("Don't know duration: " + duration);
+            long amount = Long.parseUnsignedLong(parts[0].trim());
+            return amount * unitInNs(parts[1].trim());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Don't know duration: " + duration);
+        }
+    }
+
+    /**
+     * Parse a unit of time
+     *
+     * @param unit ns, µs/us, ms, s or their long forms
+     * @return number of nanoseconds in the unit
+     * @throws IllegalArgumentException if the string isn't a unit
+     */
+    public static long unitInNs(String unit) throws IllegalArgumentException {
+        if (unit == null)
+            throw new IllegalArgumentException("Don't know unset unit");
+        switch (unit.toLowerCase(Locale.ROOT)) {
+            case "n":
+            case "nano":
+            case "nanos":
+            case "nanosecond":
+            case "nanoseconds":
+            case "ns":
+                return 1L;
+            case "micro":
+            case "micros":
+            case "microsecond":
+            case "microseconds":
+            case "u":
+            case "us":
+            case "µ":
+            case "µs":
+                return 1_000L;
+            case "m":
+            case "ms":
+            case "milli":
+            case "millis":
+            case "millisecond":
+            case "milliseconds":
+                return 1_000_000L;
+            case "s":
+            case "second":
+            case "seconds":
+                return 1_000_000_000L;
+            default:
+                throw new IllegalArgumentException("Don't know unit: " + unit);
+        }
+    }
+}
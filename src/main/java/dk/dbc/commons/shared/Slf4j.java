@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.shared;
+
+/**
+ * What the slf4j-api on the classpath supports
+ * <p>
+ * Used by both slowcalllog and stopwatch, which is why it is public.
+ * Applications have no use for this package.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public final class Slf4j {
+
+    private static final boolean KEY_VALUES = hasClass("org.slf4j.spi.LoggingEventBuilder");
+
+    private Slf4j() {
+    }
+
+    /**
+     * If log events can have key/values ({@code Logger.atInfo().addKeyValue(...)})
+     * <p>
+     * That is slf4j-api 2.x, with 1.7.x the calls throw
+     * {@link NoSuchMethodError}
+     *
+     * @return if the fluent logging API is available
+     */
+    public static boolean hasKeyValues() {
+        return KEY_VALUES;
+    }
+
+    private static boolean hasClass(String name) {
+        try {
+            Class.forName(name, false, Slf4j.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import dk.dbc.commons.shared.BackgroundTasks;
+import dk.dbc.commons.statistics.LatencyHistogram;
+
+/**
+ * A threshold that follows a percentile of the recent call durations
+ * <p>
+ * Every {@link #TICK_IN_NS} the new counts from the method's
+ * {@link LatencyHistogram} are added to a copy of the buckets, that decays
+ * with a half-life of {@link #HALF_LIFE_IN_NS}. The percentile of that,
+ * bounded by the floor and ceiling, becomes the threshold. Until there are
+ * enough calls for the percentile to make sense, the threshold is the
+ * ceiling.
+ * <p>
+ * The syntax is: {@code [adaptive:]p<percentile>[:<floor>[:<ceiling>]]} ex.
+ * "p99", "adaptive:p99.5:1ms:2s"
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class AdaptiveThreshold implements Runnable {
+
+    private static final Pattern SYNTAX = Pattern.compile("(?i)(?:adaptive:)?p(\\d+(?:\\.\\d+)?)(?::([^:]+))?(?::([^:]+))?");
+    static final long TICK_IN_NS = 1_000_000_000L;
+    static final long HALF_LIFE_IN_NS = 60_000_000_000L;
+    private static final double DECAY = Math.pow(0.5, (double) TICK_IN_NS / (double) HALF_LIFE_IN_NS);
+
+    private final LatencyHistogram histogram;
+    private final double percentile;
+    private final long floorInNs;
+    private final long ceilingInNs;
+    private final double minimumWeight;
+    private final long[] previousCounts;
+    private final double[] decayedCounts;
+    private SlowCallConfig config;
+    private ScheduledFuture<?> future;
+
+    /**
+     * Check if a threshold value is adaptive
+     *
+     * @param value the content of the environment variable
+     * @return if {@link #parse(java.lang.String, double, dk.dbc.commons.slowcalllog.LatencyHistogram)}
+     *         should be used
+     */
+    static boolean isAdaptive(String value) {
+        return SYNTAX.matcher(value.trim()).matches();
+    }
+
+    /**
+     * Parse an adaptive threshold
+     *
+     * @param value     the content of the environment variable
+     * @param scale     scale of floor and ceiling
+     * @param histogram the durations of the method
+     * @return adaptive threshold (not started)
+     * @throws IllegalArgumentException if the value cannot be parsed
+     */
+    static AdaptiveThreshold parse(String value, double scale, LatencyHistogram histogram) throws IllegalArgumentException {
+        Matcher matcher = SYNTAX.matcher(value.trim());
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Don't know adaptive threshold: " + value);
+        double percentile = Double.parseDouble(matcher.group(1));
+        if (!( percentile > 0.0 && percentile < 100.0 ))
+            throw new IllegalArgumentException("Percentile should be between 0 and 100 in: " + value);
+        long floor = matcher.group(2) == null ? 0L : (long) ( scale * SlowCallLogInterceptor.durationInNs(matcher.group(2)) );
+        long ceiling = matcher.group(3) == null ? Long.MAX_VALUE : (long) ( scale * SlowCallLogInterceptor.durationInNs(matcher.group(3)) );
+        if (floor > ceiling)
+            throw new IllegalArgumentException("Floor is above ceiling in: " + value);
+        return new AdaptiveThreshold(histogram, percentile, floor, ceiling);
+    }
+
+    AdaptiveThreshold(LatencyHistogram histogram, double percentile, long floorInNs, long ceilingInNs) {
+        this.histogram = histogram;
+        this.percentile = percentile;
+        this.floorInNs = floorInNs;
+        this.ceilingInNs = ceilingInNs;
+        // Enough calls that 1 is expected to be above the percentile
+        this.minimumWeight = 100.0 / ( 100.0 - percentile );
+        this.previousCounts = new long[LatencyHistogram.BUCKETS];
+        this.decayedCounts = new double[LatencyHistogram.BUCKETS];
+    }
+
+    /**
+     * The threshold until enough calls have been made
+     *
+     * @return the ceiling in ns
+     */
+    long initialInNs() {
+        return ceilingInNs;
+    }
+
+    /**
+     * Update the threshold of a method periodically
+     *
+     * @param config the settings of the method
+     */
+    synchronized void start(SlowCallConfig config) {
+        this.config = config;
+        this.future = BackgroundTasks.every(TICK_IN_NS, this);
+    }
+
+    /**
+     * Stop updating the threshold
+     */
+    synchronized void stop() {
+        if (future != null)
+            future.cancel(false);
+    }
+
+    @Override
+    public void run() {
+        long[] counts = histogram.counts();
+        double weight = 0.0;
+        for (int bucket = 0 ; bucket < counts.length ; bucket++) {
+            decayedCounts[bucket] = decayedCounts[bucket] * DECAY + ( counts[bucket] - previousCounts[bucket] );
+            previousCounts[bucket] = counts[bucket];
+            weight += decayedCounts[bucket];
+        }
+        if (weight < minimumWeight)
+            return;
+        long value = LatencyHistogram.valueAtPercentile(decayedCounts, weight, percentile);
+        config.adapt(this, Math.max(floorInNs, Math.min(ceilingInNs, value)));
+    }
+
+    @Override
+    public String toString() {
+        return "p" + percentile + " of recent calls (between " + floorInNs + "ns and " + ceilingInNs + "ns)";
+    }
+}
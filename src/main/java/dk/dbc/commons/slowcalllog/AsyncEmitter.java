@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Asynchronous output of slow-call lines
+ * <p>
+ * The line is rendered on the calling thread (the parameters might change
+ * after the call), and put into a preallocated ring buffer together with the
+ * duration and selected {@link MDC} values. A background thread takes them
+ * out and logs them, so a slow appender doesn't make slow calls slower.
+ * <p>
+ * The ring buffer is a lock-free multi producer, single consumer queue,
+ * where each slot has a sequence number telling if it is free or filled.
+ * <p>
+ * Dropped lines are reported as a warning at most every
+ * {@value #REPORT_INTERVAL_MS}ms, also while the queue is busy. After
+ * {@link #shutdown()} lines are logged by the calling thread.
+ * <p>
+ * Configured by environment variables:
+ * <ul>
+ * <li>{@code SLOW_CALL_ASYNC_QUEUE} size of the ring buffer (rounded up to a
+ * power of 2), default 1024
+ * <li>{@code SLOW_CALL_ASYNC_POLICY} drop/block when the buffer is full,
+ * default drop
+ * <li>{@code SLOW_CALL_ASYNC_MDC} comma separated list of {@link MDC} keys
+ * that are carried to the log line, default trackingId
+ * </ul>
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class AsyncEmitter implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncEmitter.class);
+
+    private static final String QUEUE_ENV = "SLOW_CALL_ASYNC_QUEUE";
+    private static final String POLICY_ENV = "SLOW_CALL_ASYNC_POLICY";
+    private static final String MDC_ENV = "SLOW_CALL_ASYNC_MDC";
+    private static final int DEFAULT_QUEUE = 1024;
+    private static final int MAX_QUEUE = 1 << 20;
+    private static final String DEFAULT_MDC = "trackingId";
+    private static final long IDLE_PARK_NS = 5_000_000L;
+    private static final long FULL_PARK_NS = 50_000L;
+    static final long REPORT_INTERVAL_MS = 10_000L;
+    private static final long REPORT_INTERVAL_NS = REPORT_INTERVAL_MS * 1_000_000L;
+
+    private static AsyncEmitter instance;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final boolean blockWhenFull;
+    private final String[] mdcKeys;
+    private final String[] mdcValues;
+    private final String[] oldMdcValues;
+    private final AtomicLong tail;
+    private final LongAdder dropped;
+    private final Thread thread;
+    private volatile boolean running;
+    // Consumer side, owned by the thread, or the caller of drainStopped()
+    private long head;
+    private long reportedDrops;
+    private long lastReport;
+
+    private static final class Slot {
+
+        private volatile long sequence;
+        private long claimedAt;
+        private SlowCallOutput output;
+        private long time;
+        private String message;
+        private final String[] mdcValues;
+
+        private Slot(long sequence, int mdcCount) {
+            this.sequence = sequence;
+            this.mdcValues = new String[mdcCount];
+        }
+    }
+
+    /**
+     * Get the (started) emitter
+     * <p>
+     * This is created when the first method with
+     * {@link SlowCallLog#async()} is wrapped
+     *
+     * @return emitter
+     * @throws IllegalArgumentException if the environment variables are
+     *                                  invalid
+     */
+    static synchronized AsyncEmitter instance() throws IllegalArgumentException {
+        if (instance == null) {
+            instance = new AsyncEmitter(queueSize(), blockWhenFull(), mdcKeys());
+            instance.start();
+            log.info("Started async SlowCallLog with a queue of {}", instance.slots.length);
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the background thread, after the queued lines are logged
+     * <p>
+     * Wrappers that still have the emitter log synchronously from now on
+     */
+    static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    /**
+     * Stop the background thread, after the queued lines are logged
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Start the background thread
+     */
+    void start() {
+        thread.start();
+    }
+
+    AsyncEmitter(int queueSize, boolean blockWhenFull, String[] mdcKeys) {
+        int size = Integer.highestOneBit(queueSize * 2 - 1);
+        this.slots = new Slot[size];
+        for (int i = 0 ; i < size ; i++) {
+            slots[i] = new Slot(i, mdcKeys.length);
+        }
+        this.mask = size - 1;
+        this.blockWhenFull = blockWhenFull;
+        this.mdcKeys = mdcKeys;
+        this.mdcValues = new String[mdcKeys.length];
+        this.oldMdcValues = new String[mdcKeys.length];
+        this.tail = new AtomicLong();
+        this.dropped = new LongAdder();
+        this.thread = new Thread(this, "slow-call-log-async");
+        this.thread.setDaemon(true);
+        this.running = true;
+        this.head = 0;
+        this.reportedDrops = 0;
+        this.lastReport = System.nanoTime();
+    }
+
+    /**
+     * Number of lines that has been dropped because the queue was full
+     *
+     * @return count
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Render and queue a slow-call line
+     *
+     * @param output   where the line should be logged
+     * @param time     duration in ns
+     * @param template how to render the line
+     * @param params   the parameters of the call
+     * @param result   the return value or exception text
+     */
+    void emit(SlowCallOutput output, long time, LogTemplate template, Object[] params, Object result) {
+        if (!running) {
+            output.log(time, template.render(time, params, result));
+            return;
+        }
+        Slot slot = claim();
+        if (slot == null)
+            return;
+        try {
+            fill(slot, output, time);
+            slot.message = template.render(time, params, result);
+        } finally {
+            publish(slot);
+        }
+    }
+
+    /**
+     * Queue a line, that has already been rendered
+     *
+     * @param output  where the line should be logged
+     * @param time    duration in ns
+     * @param message the log line
+     */
+    void emit(SlowCallOutput output, long time, String message) {
+        if (!running) {
+            output.log(time, message);
+            return;
+        }
+        Slot slot = claim();
+        if (slot == null)
+            return;
+        fill(slot, output, time);
+        slot.message = message;
+        publish(slot);
+    }
+
+    private void fill(Slot slot, SlowCallOutput output, long time) {
+        for (int i = 0 ; i < mdcKeys.length ; i++) {
+            slot.mdcValues[i] = MDC.get(mdcKeys[i]);
+        }
+        slot.output = output;
+        slot.time = time;
+    }
+
+    /**
+     * Hand a filled (or, if rendering failed, empty) slot to the thread
+     *
+     * @param slot the claimed slot
+     */
+    private void publish(Slot slot) {
+        slot.sequence = slot.claimedAt + 1;
+        // The thread might have stopped before the slot was filled
+        if (!running)
+            drainStopped();
+    }
+
+    /**
+     * Take ownership of the next free slot
+     *
+     * @return slot or null if the queue is full and lines should be dropped
+     */
+    private Slot claim() {
+        for (;;) {
+            long pos = tail.get();
+            Slot slot = slots[(int) pos & mask];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slot.claimedAt = pos;
+                    return slot;
+                }
+            } else if (diff < 0) {
+                if (!blockWhenFull || !running) {
+                    dropped.increment();
+                    return null;
+                }
+                LockSupport.parkNanos(this, FULL_PARK_NS);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            boolean logged = logNext();
+            long now = System.nanoTime();
+            if (now - lastReport >= REPORT_INTERVAL_NS) {
+                lastReport = now;
+                reportDrops();
+            }
+            if (!logged) {
+                if (!running)
+                    break;
+                LockSupport.parkNanos(this, IDLE_PARK_NS);
+            }
+        }
+        reportDrops();
+    }
+
+    /**
+     * Log the lines, that were queued after the thread stopped
+     */
+    private synchronized void drainStopped() {
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        while (logNext()) {
+        }
+    }
+
+    /**
+     * Log the line at the head of the queue, if it has been filled
+     *
+     * @return if a line was taken
+     */
+    private boolean logNext() {
+        Slot slot = slots[(int) head & mask];
+        if (slot.sequence != head + 1)
+            return false;
+        logSlot(slot, head);
+        head++;
+        return true;
+    }
+
+    /**
+     * Take the content out of a slot, release the slot, and log the line
+     *
+     * @param slot the slot with the content
+     * @param head the position of the slot
+     */
+    private void logSlot(Slot slot, long head) {
+        SlowCallOutput output = slot.output;
+        long time = slot.time;
+        String message = slot.message;
+        System.arraycopy(slot.mdcValues, 0, mdcValues, 0, mdcValues.length);
+        slot.output = null;
+        slot.message = null;
+        slot.sequence = head + slots.length;
+        if (message == null)
+            return;
+        // The MDC of a caller of drainStopped() is restored afterwards
+        String[] oldValues = oldMdcValues;
+        for (int i = 0 ; i < mdcKeys.length ; i++) {
+            oldValues[i] = MDC.get(mdcKeys[i]);
+            if (mdcValues[i] == null)
+                MDC.remove(mdcKeys[i]);
+            else
+                MDC.put(mdcKeys[i], mdcValues[i]);
+        }
+        try {
+            output.log(time, message);
+        } catch (RuntimeException ex) {
+            log.error("Could not log slow call: {}", ex.getMessage());
+            log.debug("Could not log slow call: ", ex);
+        } finally {
+            for (int i = 0 ; i < mdcKeys.length ; i++) {
+                if (oldValues[i] == null)
+                    MDC.remove(mdcKeys[i]);
+                else
+                    MDC.put(mdcKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void reportDrops() {
+        long drops = dropped.sum();
+        if (drops != reportedDrops)
+            log.warn("Dropped {} slow-call log lines, the async queue is full", drops - reportedDrops);
+        reportedDrops = drops;
+    }
+
+    private static int queueSize() {
+        String env = System.getenv(QUEUE_ENV);
+        if (env == null)
+            return DEFAULT_QUEUE;
+        try {
+            int size = Integer.parseInt(env.trim());
+            if (size > 0 && size <= MAX_QUEUE)
+                return size;
+        } catch (NumberFormatException ex) {
+            log.debug("Cannot parse ${}: {}", QUEUE_ENV, ex.getMessage());
+        }
+        throw new IllegalArgumentException("Invalid queue size: " + env + " in $" + QUEUE_ENV);
+    }
+
+    private static boolean blockWhenFull() {
+        String env = System.getenv(POLICY_ENV);
+        if (env == null)
+            return false;
+        switch (env.trim().toLowerCase(Locale.ROOT)) {
+            case "drop":
+                return false;
+            case "block":
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown policy: " + env + " in $" + POLICY_ENV);
+        }
+    }
+
+    private static String[] mdcKeys() {
+        String env = System.getenv(MDC_ENV);
+        if (env == null)
+            env = DEFAULT_MDC;
+        return Arrays.stream(env.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .toArray(String[]::new);
+    }
+}
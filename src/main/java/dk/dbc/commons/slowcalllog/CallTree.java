@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+
+/**
+ * The nested {@link SlowCallLog} calls of a thread
+ * <p>
+ * When a method with {@link SlowCallLog#callTree()} is called, and no other
+ * call is being recorded by the thread, it becomes the root of a tree. All
+ * annotated calls made (by the same thread) until it returns are recorded as
+ * start and duration in preallocated arrays. If the root call is slow, the
+ * tree is logged as one line, with inclusive and exclusive (self) durations,
+ * and the start of each call relative to the root.
+ * <p>
+ * At most {@link #MAX_CALLS} calls are recorded per tree, the rest are
+ * counted.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class CallTree {
+
+    static final int MAX_CALLS = 256;
+    static final int UNTRACKED = -1;
+    private static final int TRUNCATED = -2;
+
+    // Set when a method is wrapped, published by SlowCallLogInterceptor.freezeWrappers()
+    private static boolean inUse = false;
+    private static final ThreadLocal<CallTree> CURRENT = ThreadLocal.withInitial(CallTree::new);
+
+    private final Site[] sites;
+    private final long[] starts;
+    private final long[] durations;
+    private final int[] depths;
+    private int size;
+    private int depth;
+    private int truncated;
+
+    /**
+     * Where the tree line of a root is logged
+     */
+    @FunctionalInterface
+    interface Printer {
+
+        /**
+         * Log a tree line
+         *
+         * @param time the duration of the root call in ns
+         * @param line the rendered tree
+         */
+        void print(long time, String line);
+    }
+
+    /**
+     * An annotated method, as it appears in a call tree
+     */
+    static final class Site {
+
+        private final String name;
+        private final boolean root;
+        private final Printer printer;
+        private final NanoUnit unit;
+
+        /**
+         * Describe a method
+         *
+         * @param name    the name in the tree
+         * @param root    if the method starts a tree
+         * @param printer how the method logs a tree, the same way as its own
+         *                lines
+         * @param unit    the timing unit in the tree
+         */
+        Site(String name, boolean root, Printer printer, NanoUnit unit) {
+            this.name = name;
+            this.root = root;
+            this.printer = printer;
+            this.unit = unit;
+            if (root)
+                inUse = true;
+        }
+    }
+
+    CallTree() {
+        this.sites = new Site[MAX_CALLS];
+        this.starts = new long[MAX_CALLS];
+        this.durations = new long[MAX_CALLS];
+        this.depths = new int[MAX_CALLS];
+    }
+
+    /**
+     * The tree of this thread, if any method can start a tree
+     *
+     * @return tree or null
+     */
+    static CallTree current() {
+        return inUse ? CURRENT.get() : null;
+    }
+
+    /**
+     * Record the start of a call
+     *
+     * @param site  the method
+     * @param start {@link System#nanoTime()} of the start
+     * @return the node to pass to
+     *         {@link #exit(int, long, long)}, {@link #UNTRACKED} if nothing
+     *         is recorded
+     */
+    int enter(Site site, long start) {
+        if (depth == 0) {
+            if (!site.root)
+                return UNTRACKED;
+            size = 0;
+            truncated = 0;
+        }
+        depth++;
+        if (size == MAX_CALLS) {
+            truncated++;
+            return TRUNCATED;
+        }
+        int node = size++;
+        sites[node] = site;
+        starts[node] = start;
+        depths[node] = depth - 1;
+        return node;
+    }
+
+    /**
+     * Record the end of a call, and log the tree if it was a slow root
+     *
+     * @param node          the value from {@link #enter(dk.dbc.commons.slowcalllog.CallTree.Site, long)}
+     * @param duration      the duration of the call in ns
+     * @param thresholdInNs the threshold of the call
+     */
+    void exit(int node, long duration, long thresholdInNs) {
+        if (node == UNTRACKED)
+            return;
+        depth--;
+        if (node >= 0)
+            durations[node] = duration;
+        if (depth == 0 && size > 1 && duration >= thresholdInNs)
+            sites[0].printer.print(duration, render());
+    }
+
+    /**
+     * Render the recorded tree
+     *
+     * @return a.B.c 12ms (self 2ms) { +1ms x.Y.z 10ms (self 10ms) }
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder("Call tree: ");
+        render(sb, 0, sites[0].unit);
+        if (truncated != 0)
+            sb.append(" (").append(truncated).append(" calls not recorded)");
+        return sb.toString();
+    }
+
+    private int render(StringBuilder sb, int node, NanoUnit unit) {
+        int level = depths[node];
+        long children = 0;
+        for (int child = node + 1 ; child < size && depths[child] > level ; child++) {
+            if (depths[child] == level + 1)
+                children += durations[child];
+        }
+        sb.append(sites[node].name).append(' ');
+        appendTime(sb, durations[node], unit);
+        sb.append(" (self ");
+        appendTime(sb, durations[node] - children, unit);
+        sb.append(')');
+        int next = node + 1;
+        if (next < size && depths[next] > level) {
+            sb.append(" {");
+            String separator = " +";
+            while (next < size && depths[next] > level) {
+                sb.append(separator);
+                appendTime(sb, starts[next] - starts[0], unit);
+                sb.append(' ');
+                next = render(sb, next, unit);
+                separator = ", +";
+            }
+            sb.append(" }");
+        }
+        return next;
+    }
+
+    private static void appendTime(StringBuilder sb, long time, NanoUnit unit) {
+        long scaler = unit.nanoSeconds();
+        sb.append(( time + scaler / 2 ) / scaler).append(unit.unitText());
+    }
+}
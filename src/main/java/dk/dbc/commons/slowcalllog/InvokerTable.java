@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import dk.dbc.commons.slowcalllog.SlowCallLogInterceptor.Invoker;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable lookup from an intercepted {@link Method} to its
+ * {@link Invoker}
+ * <p>
+ * This is built once, when bean discovery is complete, and is read on every
+ * intercepted call. It is an open addressing table keyed on the identity of
+ * the declaring class, with the methods of that class in a short list. A
+ * method is found by identity, or if the container hands out another copy of
+ * the {@link Method} object, by {@link Method#equals(Object)} which compares
+ * interned names and types. Neither hashes the method nor allocates.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class InvokerTable {
+
+    static final InvokerTable EMPTY = new InvokerTable(Collections.emptyMap());
+
+    private final int mask;
+    private final Class<?>[] classes;
+    private final Method[][] methods;
+    private final Invoker[][] invokers;
+
+    /**
+     * Build a table
+     *
+     * @param wrappers the methods and their invokers
+     */
+    InvokerTable(Map<Method, Invoker> wrappers) {
+        Map<Class<?>, List<Method>> byClass = new LinkedHashMap<>();
+        wrappers.keySet().forEach(method -> byClass.computeIfAbsent(method.getDeclaringClass(), c -> new ArrayList<>())
+                .add(method));
+        // Power of 2, at most half full
+        int size = Integer.highestOneBit(Math.max(1, byClass.size()) * 4 - 1);
+        this.mask = size - 1;
+        this.classes = new Class<?>[size];
+        this.methods = new Method[size][];
+        this.invokers = new Invoker[size][];
+        byClass.forEach((clazz, classMethods) -> {
+            int pos = slot(clazz);
+            while (classes[pos] != null) {
+                pos = ( pos + 1 ) & mask;
+            }
+            classes[pos] = clazz;
+            methods[pos] = classMethods.toArray(new Method[0]);
+            invokers[pos] = classMethods.stream()
+                    .map(wrappers::get)
+                    .toArray(Invoker[]::new);
+        });
+    }
+
+    /**
+     * Find the invoker for a method
+     *
+     * @param method   the method that is being called
+     * @param fallback what to use if the method isn't known
+     * @return invoker
+     */
+    Invoker lookup(Method method, Invoker fallback) {
+        Class<?> clazz = method.getDeclaringClass();
+        for (int pos = slot(clazz) ;; pos = ( pos + 1 ) & mask) {
+            Class<?> candidate = classes[pos];
+            if (candidate == clazz)
+                return lookupInClass(method, methods[pos], invokers[pos], fallback);
+            if (candidate == null)
+                return fallback;
+        }
+    }
+
+    private static Invoker lookupInClass(Method method, Method[] classMethods, Invoker[] classInvokers, Invoker fallback) {
+        for (int i = 0 ; i < classMethods.length ; i++) {
+            if (classMethods[i] == method)
+                return classInvokers[i];
+        }
+        for (int i = 0 ; i < classMethods.length ; i++) {
+            if (classMethods[i].equals(method))
+                return classInvokers[i];
+        }
+        return fallback;
+    }
+
+    private int slot(Class<?> clazz) {
+        return System.identityHashCode(clazz) & mask;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.Arrays;
+
+/**
+ * Precompiled slow-call log message
+ * <p>
+ * This renders the same text as the pattern:
+ * {@code class.method([{}], [{}]) = [{}] ({}ms)}, but without the pattern
+ * being parsed and the values being boxed and collected for every log line.
+ * <p>
+ * The text is produced in a per-thread buffer, that is reused as long as it
+ * hasn't grown beyond {@link #MAX_RETAINED_BUFFER} characters, so only the
+ * resulting string (and whatever the parameters' {@code toString()}
+ * allocate) is allocated.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class LogTemplate {
+
+    private static final int INITIAL_BUFFER = 256;
+    private static final int MAX_RETAINED_BUFFER = 8192;
+    // A buffer that is in use (length > 0) is not reused if rendering is reentrant
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_BUFFER));
+
+    private final String prefix;
+    private final int[] parameterList;
+    private final boolean withResult;
+    private final long timeScaler;
+    private final String unitSuffix;
+
+    /**
+     * Compile a template
+     *
+     * @param className     the fully qualified name of the class
+     * @param methodName    the name of the method
+     * @param parameterList the parameter list, to include in the call
+     *                      description
+     * @param withResult    if the result should be included too
+     * @param timingUnit    whe wanted timing unit in the log line
+     */
+    LogTemplate(String className, String methodName, int[] parameterList, boolean withResult, NanoUnit timingUnit) {
+        this.prefix = className + "." + methodName + "(";
+        this.parameterList = parameterList.clone();
+        this.withResult = withResult;
+        this.timeScaler = timingUnit.nanoSeconds();
+        this.unitSuffix = timingUnit.unitText() + ")";
+    }
+
+    /**
+     * Produce a log line
+     *
+     * @param time   duration in ns
+     * @param params the parameters of the call
+     * @param result the return value or exception text
+     * @return log message
+     */
+    String render(long time, Object[] params, Object result) {
+        StringBuilder buffer = BUFFER.get();
+        if (buffer.length() != 0)
+            buffer = new StringBuilder(INITIAL_BUFFER);
+        try {
+            buffer.append(prefix);
+            for (int i = 0 ; i < parameterList.length ; i++) {
+                if (i != 0)
+                    buffer.append(", ");
+                buffer.append('[');
+                appendValue(buffer, params[parameterList[i]]);
+                buffer.append(']');
+            }
+            buffer.append(") ");
+            if (withResult) {
+                buffer.append("= [");
+                appendValue(buffer, result);
+                buffer.append("] ");
+            }
+            buffer.append('(')
+                    .append(( time + timeScaler / 2 ) / timeScaler)
+                    .append(unitSuffix);
+            return buffer.toString();
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_BUFFER)
+                BUFFER.set(new StringBuilder(INITIAL_BUFFER));
+            else
+                buffer.setLength(0);
+        }
+    }
+
+    /**
+     * Append a string value of an object
+     * <p>
+     * Ensure that arrays are handled correctly, and that a failing
+     * {@code toString()} doesn't fail the call
+     *
+     * @param buffer where to append the value
+     * @param value  object that should be logged
+     */
+    static void appendValue(StringBuilder buffer, Object value) {
+        try {
+            appendStringValue(buffer, value);
+        } catch (RuntimeException ex) {
+            buffer.append("FAILED toString(): ")
+                    .append(ex.getClass().getName());
+        }
+    }
+
+    private static void appendStringValue(StringBuilder buffer, Object value) {
+        if (value == null || !value.getClass().isArray())
+            buffer.append(value);
+        else if (value instanceof Object[])
+            buffer.append(Arrays.toString((Object[]) value));
+        else if (value instanceof int[])
+            buffer.append(Arrays.toString((int[]) value));
+        else if (value instanceof long[])
+            buffer.append(Arrays.toString((long[]) value));
+        else if (value instanceof byte[])
+            buffer.append(Arrays.toString((byte[]) value));
+        else if (value instanceof char[])
+            buffer.append(Arrays.toString((char[]) value));
+        else if (value instanceof short[])
+            buffer.append(Arrays.toString((short[]) value));
+        else if (value instanceof boolean[])
+            buffer.append(Arrays.toString((boolean[]) value));
+        else if (value instanceof float[])
+            buffer.append(Arrays.toString((float[]) value));
+        else
+            buffer.append(Arrays.toString((double[]) value));
+    }
+}
@@ -18,9 +18,10 @@
  */
 package dk.dbc.commons.slowcalllog;
 
-import java.util.Locale;
+import dk.dbc.commons.shared.Durations;
 
 /**
+ * A unit of time, for configuration values and log lines
  *
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
@@ -46,38 +47,11 @@ enum NanoUnit {
     }
 
     static NanoUnit of(String name) {
-        if (name == null)
-            throw new IllegalArgumentException("Don't know unset unit");
-        switch (name.toLowerCase(Locale.ROOT)) {
-            case "n":
-            case "nano":
-            case "nanos":
-            case "nanosecond":
-            case "nanoseconds":
-            case "ns":
-                return NS;
-            case "micro":
-            case "micros":
-            case "microsecond":
-            case "microseconds":
-            case "u":
-            case "us":
-            case "µ":
-            case "µs":
-                return US;
-            case "m":
-            case "ms":
-            case "milli":
-            case "millis":
-            case "millisecond":
-            case "milliseconds":
-                return MS;
-            case "s":
-            case "second":
-            case "seconds":
-                return S;
-            default:
-                throw new IllegalArgumentException("Don't know unit: " + name);
+        long nanos = Durations.unitInNs(name);
+        for (NanoUnit unit : values()) {
+            if (unit.nanos == nanos)
+                return unit;
         }
+        throw new IllegalArgumentException("Don't know unit: " + name);
     }
 }
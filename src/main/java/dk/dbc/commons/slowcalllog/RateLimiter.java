@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides if a slow call should be logged, when lines are limited by
+ * {@link SlowCallLog#rateLimit()} and/or {@link SlowCallLog#sample()}
+ * <p>
+ * The rate limit is a token bucket with room for 1 second of lines,
+ * implemented as a generic cell rate algorithm: a single timestamp of when
+ * the bucket would be full again, that is moved forward by compare-and-set
+ * when a line is allowed. A suppressed line only costs a read and an
+ * increment of a striped counter.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class RateLimiter {
+
+    private final long intervalInNs;
+    private final long toleranceInNs;
+    private final double sampleRatio;
+    private final AtomicLong theoreticalArrival;
+    private final LongAdder suppressed;
+
+    /**
+     * Create a limiter
+     *
+     * @param linesPerSecond max lines per second, 0 is unlimited
+     * @param sampleRatio    fraction of the slow calls that are considered
+     *                       for logging
+     * @param now            the current {@link System#nanoTime()}
+     */
+    RateLimiter(double linesPerSecond, double sampleRatio, long now) {
+        if (linesPerSecond > 0) {
+            this.intervalInNs = Math.max(1L, (long) ( 1_000_000_000.0 / linesPerSecond ));
+            this.toleranceInNs = ( (long) Math.ceil(linesPerSecond) - 1 ) * intervalInNs;
+        } else {
+            this.intervalInNs = 0;
+            this.toleranceInNs = 0;
+        }
+        this.sampleRatio = sampleRatio;
+        this.theoreticalArrival = new AtomicLong(now);
+        this.suppressed = new LongAdder();
+    }
+
+    /**
+     * Check if a line should be logged, counts it as suppressed if not
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return if the line is allowed
+     */
+    boolean allow(long now) {
+        if (sampleRatio < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRatio) {
+            suppressed.increment();
+            return false;
+        }
+        if (intervalInNs == 0)
+            return true;
+        for (;;) {
+            long arrival = theoreticalArrival.get();
+            long base = arrival - now > 0 ? arrival : now;
+            if (base - now > toleranceInNs) {
+                suppressed.increment();
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, base + intervalInNs))
+                return true;
+        }
+    }
+
+    /**
+     * Number of suppressed lines since last call
+     *
+     * @return count
+     */
+    long takeSuppressed() {
+        return suppressed.sumThenReset();
+    }
+}
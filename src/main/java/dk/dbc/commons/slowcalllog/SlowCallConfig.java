@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.Locale;
+import java.util.function.Consumer;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import org.slf4j.event.Level;
+
+/**
+ * The settings of a method, that can be changed at runtime
+ * <p>
+ * The settings are kept in an immutable {@link State} that is replaced as a
+ * whole, so the interceptor sees a consistent set through a single volatile
+ * read. Updates are rare, and synchronized.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class SlowCallConfig {
+
+    private final String name;
+    private final String variableName;
+    private final double scale;
+    private final LatencyHistogram histogram;
+    private volatile State state;
+
+    /**
+     * The settings at a given time
+     */
+    static final class State {
+
+        private final long thresholdInNs;
+        private final long configuredInNs;
+        private final String threshold;
+        private final AdaptiveThreshold adaptive;
+        private final boolean enabled;
+        private final Level level;
+        private final Consumer<String> logger;
+
+        private State(long configuredInNs, String threshold, AdaptiveThreshold adaptive, boolean enabled, Level level, Consumer<String> logger) {
+            this.thresholdInNs = enabled ? configuredInNs : Long.MAX_VALUE;
+            this.configuredInNs = configuredInNs;
+            this.threshold = threshold;
+            this.adaptive = adaptive;
+            this.enabled = enabled;
+            this.level = level;
+            this.logger = logger;
+        }
+
+        AdaptiveThreshold adaptive() {
+            return adaptive;
+        }
+
+        Level level() {
+            return level;
+        }
+
+        /**
+         * The log method of the level
+         *
+         * @return log method, null if "off" since deployment
+         */
+        Consumer<String> logger() {
+            return logger;
+        }
+
+        @Override
+        public String toString() {
+            return "threshold=" + threshold + " (currently " + configuredInNs + "ns), level=" + level + ", enabled=" + enabled;
+        }
+    }
+
+    /**
+     * Create a configuration
+     * <p>
+     * An adaptive threshold starts updating, once the configuration is
+     * complete
+     *
+     * @param name           name of the method
+     * @param variableName   the environment variable from the annotation
+     * @param scale          the scale from the annotation
+     * @param histogram      the durations of the method
+     * @param thresholdValue the threshold as in the environment variable,
+     *                       "off" starts disabled until a threshold is set
+     * @param level          the log level, checked when a threshold is set
+     * @throws IllegalArgumentException if the threshold cannot be parsed
+     * @throws IllegalStateException    if the level isn't enabled, and the
+     *                                  threshold isn't "off"
+     */
+    static SlowCallConfig of(String name, String variableName, double scale, LatencyHistogram histogram, String thresholdValue, Level level) {
+        SlowCallConfig config = new SlowCallConfig(name, variableName, scale, histogram, thresholdValue, level);
+        if (config.state.adaptive != null)
+            config.state.adaptive.start(config);
+        return config;
+    }
+
+    private SlowCallConfig(String name, String variableName, double scale, LatencyHistogram histogram, String thresholdValue, Level level) {
+        this.name = name;
+        this.variableName = variableName;
+        this.scale = scale;
+        this.histogram = histogram;
+        this.state = "off".equalsIgnoreCase(thresholdValue.trim()) ?
+                     new State(Long.MAX_VALUE, "off", null, false, level, null) :
+                     threshold(thresholdValue, true, level);
+    }
+
+    String name() {
+        return name;
+    }
+
+    String variableName() {
+        return variableName;
+    }
+
+    /**
+     * The threshold, {@link Long#MAX_VALUE} if disabled
+     *
+     * @return duration in ns
+     */
+    long thresholdInNs() {
+        return state.thresholdInNs;
+    }
+
+    State state() {
+        return state;
+    }
+
+    /**
+     * Set the threshold
+     * <p>
+     * "off" disables logging, "always" logs all calls, an adaptive setting
+     * (see {@link AdaptiveThreshold}) follows a percentile, anything else is
+     * a duration. Durations are scaled by the annotations scale.
+     *
+     * @param thresholdValue the threshold as in the environment variable
+     * @throws IllegalArgumentException if the threshold cannot be parsed
+     */
+    synchronized void setThreshold(String thresholdValue) throws IllegalArgumentException {
+        State newState = "off".equalsIgnoreCase(thresholdValue.trim()) ?
+                         new State(state.configuredInNs, state.threshold, state.adaptive, false, state.level, state.logger) :
+                         threshold(thresholdValue, true, state.level);
+        if (state.adaptive != null && state.adaptive != newState.adaptive)
+            state.adaptive.stop();
+        boolean started = newState.adaptive != null && newState.adaptive != state.adaptive;
+        state = newState;
+        if (started)
+            newState.adaptive.start(this);
+    }
+
+    /**
+     * Enable or disable logging with the current threshold
+     * <p>
+     * A method, that was "off" at deployment stays silent until a threshold
+     * is set
+     *
+     * @param enabled if slow calls should be logged
+     */
+    synchronized void setEnabled(boolean enabled) {
+        state = new State(state.configuredInNs, state.threshold, state.adaptive, enabled, state.level, state.logger);
+    }
+
+    /**
+     * Set the log level
+     *
+     * @param level the new level
+     * @throws IllegalStateException if the level isn't enabled for the logger
+     */
+    synchronized void setLevel(Level level) throws IllegalStateException {
+        state = new State(state.configuredInNs, state.threshold, state.adaptive, state.enabled, level, SlowCallOutput.loggerForLevel(level));
+    }
+
+    /**
+     * Update the threshold from an adaptive threshold, if it's still the
+     * active one
+     *
+     * @param adaptive the source of the update
+     * @param inNs     the new threshold
+     */
+    synchronized void adapt(AdaptiveThreshold adaptive, long inNs) {
+        if (state.adaptive == adaptive)
+            state = new State(inNs, state.threshold, adaptive, state.enabled, state.level, state.logger);
+    }
+
+    private State threshold(String thresholdValue, boolean enabled, Level level) {
+        String value = thresholdValue.trim();
+        if (AdaptiveThreshold.isAdaptive(value)) {
+            AdaptiveThreshold adaptive = AdaptiveThreshold.parse(value, scale, histogram);
+            return new State(adaptive.initialInNs(), adaptive.toString(), adaptive, enabled, level, SlowCallOutput.loggerForLevel(level));
+        }
+        long inNs = "always".equals(value.toLowerCase(Locale.ROOT)) ? 0 :
+                    (long) ( scale * (double) SlowCallLogInterceptor.durationInNs(value) );
+        return new State(inNs, value, null, enabled, level, SlowCallOutput.loggerForLevel(level));
+    }
+
+    @Override
+    public String toString() {
+        return state.toString();
+    }
+}
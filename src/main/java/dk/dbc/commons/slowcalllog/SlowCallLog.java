@@ -34,13 +34,16 @@ import org.slf4j.event.Level;
  * Across bean boundary interceptor annotation
  * <p>
  * This allows for logging parameters/return values for slow invocations
+ * <p>
+ * On a class it applies to all public methods, that can be intercepted.
+ * A method's own annotation replaces the class' annotation.
  *
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
 @Inherited
 @Documented
 @InterceptorBinding
-@Target({ElementType.METHOD})
+@Target({ElementType.METHOD, ElementType.TYPE})
 @Retention(RetentionPolicy.RUNTIME)
 public @interface SlowCallLog {
 
@@ -52,6 +55,12 @@ public @interface SlowCallLog {
      * Name of environment variable containing a number and a unit.
      * Ex. "3ms"
      * <p>
+     * It can also be "off", "always" or an adaptive threshold, that follows a
+     * percentile of the recent calls to the method:
+     * {@code [adaptive:]p<percentile>[:<floor>[:<ceiling>]]} ex. "p99" or
+     * "adaptive:p99.5:1ms:2s" (floor and ceiling are scaled by
+     * {@link #scale()})
+     * <p>
      * defaults to {@code SLOW_CALL_THRESHOLD}
      *
      * @return VARIABLE NAME
@@ -89,6 +98,8 @@ public @interface SlowCallLog {
      * <p>
      * default is {-1} which is everything. use {} to not log any call
      * parameters
+     * <p>
+     * This cannot be set on a class, it fails deployment
      *
      * @return {-1}
      */
@@ -121,4 +132,123 @@ public @interface SlowCallLog {
      */
     @Nonbinding
     String unit() default "ms";
+
+    /**
+     * How the {@code call_duration_ms}, {@code class} and {@code method}
+     * values are attached to the log line
+     * <p>
+     * {@link MdcMode#DEFAULT} uses the value of the environment variable
+     * {@code SLOW_CALL_MDC} (copy/delta/event), or {@link MdcMode#COPY} if it
+     * is unset
+     *
+     * @return DEFAULT
+     */
+    @Nonbinding
+    MdcMode mdc() default MdcMode.DEFAULT;
+
+    /**
+     * Set to true, if the log line should be written by a background thread
+     * <p>
+     * The line is rendered by the calling thread, and queued. The queue is
+     * configured by the environment variables {@code SLOW_CALL_ASYNC_QUEUE}
+     * (size, default 1024), {@code SLOW_CALL_ASYNC_POLICY} (drop/block when
+     * full, default drop) and {@code SLOW_CALL_ASYNC_MDC} (comma separated MDC
+     * keys to include, default trackingId)
+     *
+     * @return false
+     */
+    @Nonbinding
+    boolean async() default false;
+
+    /**
+     * Max number of log lines per second for this method
+     * <p>
+     * When everything is slow, this prevents the log from being flooded.
+     * Suppressed lines are counted, and reported periodically as "N
+     * suppressed slow calls for X". The period is set by the environment
+     * variable {@code SLOW_CALL_SUPPRESSED_REPORT} (default 60s)
+     *
+     * @return 0 which is unlimited
+     */
+    @Nonbinding
+    double rateLimit() default 0;
+
+    /**
+     * Fraction (0.0 - 1.0) of the slow calls that are logged
+     * <p>
+     * The rest are suppressed as for {@link #rateLimit()}
+     *
+     * @return 1.0 which is all
+     */
+    @Nonbinding
+    double sample() default 1.0;
+
+    /**
+     * Aggregate slow calls over a window, instead of logging each of them
+     * <p>
+     * Every window one line is logged for the method, with the number of slow
+     * calls, their total and max duration, and the {@link #summaryTop()}
+     * slowest calls. The empty string uses the value of the environment
+     * variable {@code SLOW_CALL_SUMMARY}, "off" (or an unset variable) logs
+     * each call.
+     * <p>
+     * {@link #async()}, {@link #rateLimit()} and {@link #sample()} do not
+     * apply to summaries.
+     *
+     * @return "" (the environment variable)
+     */
+    @Nonbinding
+    String summary() default "";
+
+    /**
+     * Number of the slowest calls, with parameters, that are included in a
+     * {@link #summary()} line
+     *
+     * @return 5
+     */
+    @Nonbinding
+    int summaryTop() default 5;
+
+    /**
+     * Set to true, if this method should record the nested
+     * {@link SlowCallLog} calls
+     * <p>
+     * When this method is slow, a line with the tree of nested calls (made by
+     * the same thread) is logged after the line for the call, with the
+     * inclusive and exclusive (self) durations of each call. The nested calls
+     * are still logged by their own thresholds.
+     * <p>
+     * The tree line is logged like the line of the call: {@link #async()},
+     * and counted against {@link #rateLimit()} and {@link #sample()}. When
+     * the method has a {@link #summary()} no trees are logged.
+     *
+     * @return false
+     */
+    @Nonbinding
+    boolean callTree() default false;
+
+    /**
+     * Ways of attaching values to the log line
+     */
+    enum MdcMode {
+        /**
+         * Use the environment variable {@code SLOW_CALL_MDC}
+         */
+        DEFAULT,
+        /**
+         * Copy the entire {@link org.slf4j.MDC}, add the values, and restore
+         * the copy after logging
+         */
+        COPY,
+        /**
+         * Add the values to the {@link org.slf4j.MDC}, and restore only those
+         * after logging
+         */
+        DELTA,
+        /**
+         * Add the values as key/values on the log event, the
+         * {@link org.slf4j.MDC} is not touched (duration is a number)
+         */
+        EVENT
+    }
 }
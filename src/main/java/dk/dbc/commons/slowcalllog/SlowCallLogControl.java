@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+/**
+ * The settings of all the intercepted methods, exposed through JMX
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class SlowCallLogControl implements SlowCallLogControlMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(SlowCallLogControl.class);
+
+    static final String OBJECT_NAME = "dk.dbc.commons.slowcalllog:type=SlowCallLogControl";
+    static final String APP_NAME_JNDI = "java:app/AppName";
+
+    private static final ConcurrentMap<String, SlowCallConfig> CONFIGS = new ConcurrentHashMap<>();
+    private static ObjectName registered;
+
+    /**
+     * Make the settings of a method controllable
+     *
+     * @param config the settings
+     */
+    static void register(SlowCallConfig config) {
+        CONFIGS.put(config.name(), config);
+    }
+
+    /**
+     * Register the MBean in the platform MBeanServer
+     * <p>
+     * Failure is logged, not fatal
+     */
+    static synchronized void registerMBean() {
+        if (registered != null)
+            return;
+        try {
+            ObjectName name = objectName(appName());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new SlowCallLogControl(), name);
+            registered = name;
+        } catch (JMException | RuntimeException ex) {
+            log.warn("Could not register {}: {}", OBJECT_NAME, ex.getMessage());
+            log.debug("Could not register {}: ", OBJECT_NAME, ex);
+        }
+    }
+
+    /**
+     * The name of the MBean for an application
+     * <p>
+     * Several deployments can share a MBeanServer, so the application is part
+     * of the name
+     *
+     * @param app name of the application
+     * @return object name
+     * @throws JMException if the name is invalid
+     */
+    static ObjectName objectName(String app) throws JMException {
+        return new ObjectName(OBJECT_NAME + ",app=" + ObjectName.quote(app));
+    }
+
+    /**
+     * The name of the deployment
+     * <p>
+     * From JNDI if in a container, otherwise made from the class loader
+     *
+     * @return name of the application
+     */
+    static String appName() {
+        try {
+            Object name = new InitialContext().lookup(APP_NAME_JNDI);
+            if (name != null)
+                return name.toString();
+        } catch (NamingException | RuntimeException ex) {
+            log.debug("Could not lookup {}: {}", APP_NAME_JNDI, ex.getMessage());
+        }
+        ClassLoader loader = SlowCallLogControl.class.getClassLoader();
+        return "classloader-" + Integer.toHexString(System.identityHashCode(loader));
+    }
+
+    /**
+     * Remove the MBean from the platform MBeanServer
+     */
+    static synchronized void unregisterMBean() {
+        if (registered == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException | RuntimeException ex) {
+            log.warn("Could not unregister {}: {}", registered, ex.getMessage());
+            log.debug("Could not unregister {}: ", registered, ex);
+        }
+        registered = null;
+    }
+
+    @Override
+    public String[] getMethods() {
+        return CONFIGS.keySet().stream()
+                .sorted()
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String getSettings(String method) {
+        return config(method).toString();
+    }
+
+    @Override
+    public void setThreshold(String method, String threshold) {
+        SlowCallConfig config = config(method);
+        config.setThreshold(threshold);
+        log.info("SlowCallLog for: {} changed to {}", method, config);
+    }
+
+    @Override
+    public int setThresholdForVariable(String variable, String threshold) {
+        int count = 0;
+        for (SlowCallConfig config : CONFIGS.values()) {
+            if (config.variableName().equals(variable)) {
+                config.setThreshold(threshold);
+                log.info("SlowCallLog for: {} changed to {}", config.name(), config);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void setLevel(String method, String level) {
+        SlowCallConfig config = config(method);
+        config.setLevel(Level.valueOf(level.trim().toUpperCase(Locale.ROOT)));
+        log.info("SlowCallLog for: {} changed to {}", method, config);
+    }
+
+    @Override
+    public void setEnabled(String method, boolean enabled) {
+        SlowCallConfig config = config(method);
+        config.setEnabled(enabled);
+        log.info("SlowCallLog for: {} changed to {}", method, config);
+    }
+
+    @Override
+    public String getStatistics(String method) {
+        return SlowCallLogStatistics.histogram(config(method).name()).snapshot().toString();
+    }
+
+    private static SlowCallConfig config(String method) {
+        SlowCallConfig config = CONFIGS.get(method);
+        if (config == null)
+            throw new IllegalArgumentException("Unknown method: " + method);
+        return config;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+/**
+ * Runtime control of the {@link SlowCallLog} annotated methods
+ * <p>
+ * Registered in the platform MBeanServer as
+ * "dk.dbc.commons.slowcalllog:type=SlowCallLogControl,app=&lt;application&gt;",
+ * where application is "java:app/AppName". Methods are named:
+ * {@code fully.qualified.Class.method(fully.qualified.ParameterType, ...)}, like in
+ * {@link SlowCallLogStatistics}.
+ * <p>
+ * Thresholds are given like the environment variables, and are scaled by
+ * the annotations scale. Methods that are "off" at deployment are disabled,
+ * and are turned on by setting a threshold.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public interface SlowCallLogControlMXBean {
+
+    /**
+     * The names of the intercepted methods
+     *
+     * @return sorted list of names
+     */
+    String[] getMethods();
+
+    /**
+     * Describe the current settings of a method
+     *
+     * @param method name of the method
+     * @return threshold, level and if logging is enabled
+     */
+    String getSettings(String method);
+
+    /**
+     * Set the threshold of a method
+     *
+     * @param method    name of the method
+     * @param threshold duration, "always", "off" or an adaptive threshold
+     */
+    void setThreshold(String method, String threshold);
+
+    /**
+     * Set the threshold of all methods that use an environment variable, as if
+     * the variable had this value at deployment
+     *
+     * @param variable  name of the environment variable
+     * @param threshold duration, "always", "off" or an adaptive threshold
+     * @return number of methods that have been updated
+     */
+    int setThresholdForVariable(String variable, String threshold);
+
+    /**
+     * Set the log level of a method
+     *
+     * @param method name of the method
+     * @param level  TRACE, DEBUG, INFO, WARN or ERROR, must be enabled for
+     *               the logger
+     */
+    void setLevel(String method, String level);
+
+    /**
+     * Turn logging of a method on or off, keeping the threshold
+     *
+     * @param method  name of the method
+     * @param enabled if slow calls should be logged
+     */
+    void setEnabled(String method, boolean enabled);
+
+    /**
+     * Describe the latency distribution of a method
+     *
+     * @param method name of the method
+     * @return count and percentiles
+     */
+    String getStatistics(String method);
+}
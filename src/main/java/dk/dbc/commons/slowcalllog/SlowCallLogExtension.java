@@ -18,11 +18,16 @@
  */
 package dk.dbc.commons.slowcalllog;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import dk.dbc.commons.shared.BackgroundTasks;
 import jakarta.enterprise.event.Observes;
 import jakarta.enterprise.inject.spi.AfterBeanDiscovery;
+import jakarta.enterprise.inject.spi.AfterDeploymentValidation;
 import jakarta.enterprise.inject.spi.AnnotatedMethod;
+import jakarta.enterprise.inject.spi.AnnotatedType;
+import jakarta.enterprise.inject.spi.BeforeShutdown;
 import jakarta.enterprise.inject.spi.Extension;
 import jakarta.enterprise.inject.spi.ProcessAnnotatedType;
 import jakarta.enterprise.inject.spi.WithAnnotations;
@@ -46,24 +51,53 @@ public class SlowCallLogExtension implements Extension {
     private final List<String> SETUP_ERRORS = new ArrayList<>();
 
     /**
-     * Process all methods annotated with {@link SlowCallLog}
+     * Process all methods annotated with {@link SlowCallLog}, or in a class
+     * annotated with it
+     * <p>
+     * The annotations are taken from the annotated type, so annotations added
+     * or removed by other extensions are respected. The class annotation
+     * applies to the public methods, that don't have their own annotation. It
+     * cannot have {@link SlowCallLog#parameters()}, as the methods don't have
+     * the same parameters, that is a deployment error.
      *
      * @param <T>                  Type definition
      * @param processAnnotatedType the method metadata for the class with the
      *                             annotation
      */
     private <T> void processAnnotatedType(@Observes @WithAnnotations(SlowCallLog.class) ProcessAnnotatedType<T> processAnnotatedType) {
+        AnnotatedType<T> type = processAnnotatedType.getAnnotatedType();
+        SlowCallLog classLevel = type.getAnnotation(SlowCallLog.class);
+        String classError = SlowCallLogInterceptor.classLevelError(classLevel, type.getJavaClass());
+        if (classError != null) {
+            SETUP_ERRORS.add(classError);
+            return;
+        }
 
-        processAnnotatedType.configureAnnotatedType()
-                .methods()
-                .stream()
-                .filter(m -> m.getAnnotated().isAnnotationPresent(SlowCallLog.class))
-                .map(m -> m.add(SCL_INTERCEPTOR_BINDING))
-                .map(AnnotatedMethodConfigurator::getAnnotated)
-                .map(AnnotatedMethod::getJavaMember)
-                .map(SlowCallLogInterceptor::wrapMethod)
-                .filter(e -> e != null)
-                .forEach(SETUP_ERRORS::add);
+        for (AnnotatedMethodConfigurator<? super T> configurator : processAnnotatedType.configureAnnotatedType().methods()) {
+            AnnotatedMethod<? super T> annotated = configurator.getAnnotated();
+            Method method = annotated.getJavaMember();
+            SlowCallLog slowCallLog = SlowCallLogInterceptor.annotationFor(annotated.getAnnotation(SlowCallLog.class), method, classLevel);
+            if (slowCallLog == null)
+                continue;
+            configurator.add(SCL_INTERCEPTOR_BINDING);
+            String error = SlowCallLogInterceptor.wrapMethod(method, slowCallLog);
+            if (error != null)
+                SETUP_ERRORS.add(error);
+        }
+    }
+
+    private void freezeWrappers(@Observes AfterBeanDiscovery afterBeanDiscovery) {
+        SlowCallLogInterceptor.freezeWrappers();
+    }
+
+    private void registerControl(@Observes AfterDeploymentValidation afterDeploymentValidation) {
+        SlowCallLogControl.registerMBean();
+    }
+
+    private void shutdown(@Observes BeforeShutdown beforeShutdown) {
+        SlowCallLogControl.unregisterMBean();
+        AsyncEmitter.shutdown();
+        BackgroundTasks.shutdown();
     }
 
     private void validationError(@Observes AfterBeanDiscovery afterBeanDiscovery) {
@@ -19,21 +19,29 @@
 package dk.dbc.commons.slowcalllog;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.function.BiConsumer;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import dk.dbc.commons.shared.BackgroundTasks;
+import dk.dbc.commons.shared.Durations;
+import dk.dbc.commons.shared.Slf4j;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import dk.dbc.commons.stopwatch.Clock;
+import dk.dbc.commons.stopwatch.StopWatch;
 import jakarta.annotation.Priority;
 import jakarta.interceptor.AroundInvoke;
 import jakarta.interceptor.Interceptor;
 import jakarta.interceptor.InvocationContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
-import org.slf4j.event.Level;
 
 /**
  * Across bean boundary interceptor annotation
@@ -53,75 +61,236 @@ class SlowCallLogInterceptor {
 
     private static final Logger log = LoggerFactory.getLogger(SlowCallLogInterceptor.class);
 
-    private static final HashMap<Method, Invoker> WRAPPERS = new HashMap<>();
+    // Wrappers registered during bean discovery
+    private static final Map<Method, Invoker> PENDING_WRAPPERS = new ConcurrentHashMap<>();
+    // Wrappers used by the interceptor, published when bean discovery is done
+    private static volatile InvokerTable wrappers = InvokerTable.EMPTY;
     // Do noting "wrapper"
     private static final Invoker DEFAULT_WRAPPER = InvocationContext::proceed;
+    // Parameter and return types are shared by many methods, check each once
+    private static final ClassValue<Boolean> CANNOT_BECOME_STRING = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return cannotBecomeString(type);
+        }
+    };
 
-    private static final String MDC_DURATION = "call_duration_ms";
-    private static final String MDC_CLASS = "class";
-    private static final String MDC_METHOD = "method";
+    // Environment variable with the default SlowCallLog.MdcMode
+    private static final String MDC_MODE_ENV = "SLOW_CALL_MDC";
+    // Environment variable with how often suppressed lines are reported
+    private static final String SUPPRESSED_REPORT_ENV = "SLOW_CALL_SUPPRESSED_REPORT";
+    private static final String DEFAULT_SUPPRESSED_REPORT = "60s";
+    // Environment variable with the default SlowCallLog.summary window
+    private static final String SUMMARY_ENV = "SLOW_CALL_SUMMARY";
 
     @FunctionalInterface
-    private interface Invoker {
+    interface Invoker {
 
         Object call(InvocationContext ic) throws Exception;
     }
 
     @FunctionalInterface
-    private interface LogPrinter {
+    interface LogPrinter {
 
         void call(long time, Object[] params, Object result);
     }
 
     @AroundInvoke
-    private Object methodInvocation(InvocationContext context) throws Exception {
-        return WRAPPERS.getOrDefault(context.getMethod(), DEFAULT_WRAPPER)
+    Object methodInvocation(InvocationContext context) throws Exception {
+        return wrappers.lookup(context.getMethod(), DEFAULT_WRAPPER)
                 .call(context);
     }
 
     /**
-     * Store in the global wrappers object a wrapper for this method
+     * Make all the wrappers from {@link #wrapMethod(java.lang.reflect.Method)}
+     * visible to the interceptor
+     * <p>
+     * This is called when bean discovery is complete
+     */
+    static void freezeWrappers() {
+        wrappers = new InvokerTable(PENDING_WRAPPERS);
+    }
+
+    /**
+     * Register a wrapper for this method
+     * <p>
+     * It is not used until {@link #freezeWrappers()} is called
      *
      * @param method The method that is annotated with {@link SlowCallLog}
      * @return an error message or null
      */
     static String wrapMethod(Method method) {
+        return wrapMethod(method, method.getAnnotation(SlowCallLog.class));
+    }
+
+    /**
+     * Register a wrapper for this method
+     * <p>
+     * It is not used until {@link #freezeWrappers()} is called
+     *
+     * @param method      The method that is annotated with {@link SlowCallLog},
+     *                    or is in a class that is
+     * @param slowCallLog the annotation that applies to the method (see
+     *                    {@link #annotationFor(SlowCallLog, Method, SlowCallLog)}),
+     *                    or null
+     * @return an error message or null
+     */
+    static String wrapMethod(Method method, SlowCallLog slowCallLog) {
         String methodName = method.toGenericString();
         try {
-            SlowCallLog slowCallLog = method.getAnnotation(SlowCallLog.class);
             if (slowCallLog == null)
                 return null;
             log.debug("wrapping {} {}", slowCallLog, methodName);
             int[] params = paramList(slowCallLog, method);
             IntStream.of(params)
                     .mapToObj(i -> method.getParameterTypes()[i])
-                    .filter(SlowCallLogInterceptor::cannotBecomeString)
+                    .filter(CANNOT_BECOME_STRING::get)
                     .forEach(type -> log.warn("Type {} doesn't have a toString(), but is used in @SlowCallLog by {}", type, methodName));
-            long maxInvocationDurationInNs = logDuration(slowCallLog);
-            if (maxInvocationDurationInNs < 0) {
-                log.info("SlowCallLog for: {} is turned off", methodName, maxInvocationDurationInNs);
-                return null;
-            }
-            BiConsumer<String, Object[]> logger = loggerForLevel(slowCallLog.level());
+            String thresholdValue = thresholdValue(slowCallLog);
+            String displayName = displayName(method);
+            LatencyHistogram histogram = SlowCallLogStatistics.histogram(displayName);
+            SlowCallConfig config = SlowCallConfig.of(displayName, slowCallLog.env(), slowCallLog.scale(), histogram,
+                                                      thresholdValue, slowCallLog.level());
+            String className = method.getDeclaringClass().getCanonicalName();
+            SlowCallOutput output = new SlowCallOutput(className, method.getName(), config, mdcMode(slowCallLog));
             NanoUnit logUnit = NanoUnit.of(slowCallLog.unit());
-            LogPrinter exceptionLogger = loggerFor(method, params, true, logUnit, logger);
+            SlowCallSummary summary = summary(slowCallLog, output, className + "." + method.getName());
+            AsyncEmitter async = slowCallLog.async() && summary == null ? AsyncEmitter.instance() : null;
+            LogPrinter exceptionLogger = loggerFor(method, params, true, logUnit, output, async, summary);
             LogPrinter slowLogger = exceptionLogger;
             Class<?> returnType = method.getReturnType();
             if (slowCallLog.result() && !returnType.equals(Void.TYPE)) {
-                if (cannotBecomeString(returnType))
+                if (CANNOT_BECOME_STRING.get(returnType))
                     log.warn("Return type {} doesn't have a toString(), but is used in @SlowCallLog by {}", returnType, methodName);
             } else {
-                slowLogger = loggerFor(method, params, false, logUnit, logger);
+                slowLogger = loggerFor(method, params, false, logUnit, output, async, summary);
             }
-            Invoker invoker = makeInvoker(maxInvocationDurationInNs, slowLogger, exceptionLogger);
-            WRAPPERS.put(method, invoker);
-            log.info("SlowCallLog for: {} with a max duration of {}ns", methodName, maxInvocationDurationInNs);
+            RateLimiter limiter = summary == null ? rateLimiter(slowCallLog, output, className + "." + method.getName()) : null;
+            if (limiter != null) {
+                slowLogger = limited(slowLogger, limiter);
+                exceptionLogger = limited(exceptionLogger, limiter);
+            }
+            CallTree.Site site = new CallTree.Site(className + "." + method.getName(), slowCallLog.callTree() && summary == null,
+                                                   treePrinter(output, async, limiter), logUnit);
+            StopWatch.Key timer = StopWatch.key(timerName(method));
+            Invoker invoker = isAsync(returnType) ?
+                              makeAsyncInvoker(config, histogram, site, timer, slowLogger, exceptionLogger) :
+                              makeInvoker(config, histogram, site, timer, slowLogger, exceptionLogger);
+            PENDING_WRAPPERS.put(method, invoker);
+            SlowCallLogControl.register(config);
+            log.info("SlowCallLog for: {} with {}", methodName, config);
         } catch (RuntimeException ex) {
             return ex.getMessage() + " for " + method.toGenericString();
         }
         return null;
     }
 
+    /**
+     * The annotation that applies to a method
+     *
+     * @param method     the method
+     * @param classLevel the annotation of the class, or null
+     * @return the method's own annotation, the class' if the method can be
+     *         intercepted, or null
+     */
+    static SlowCallLog annotationFor(Method method, SlowCallLog classLevel) {
+        return annotationFor(method.getAnnotation(SlowCallLog.class), method, classLevel);
+    }
+
+    /**
+     * The annotation that applies to a method
+     * <p>
+     * For the CDI extension, where the annotations come from the annotated
+     * type, not the class
+     *
+     * @param own        the method's own annotation, or null
+     * @param method     the method
+     * @param classLevel the annotation of the class, or null
+     * @return the method's own annotation, the class' if the method can be
+     *         intercepted, or null
+     */
+    static SlowCallLog annotationFor(SlowCallLog own, Method method, SlowCallLog classLevel) {
+        if (own != null)
+            return own;
+        if (classLevel != null && isInterceptable(method))
+            return classLevel;
+        return null;
+    }
+
+    /**
+     * Validate an annotation on a class
+     * <p>
+     * The methods of a class don't have the same parameters, so a class level
+     * annotation cannot select which parameters to log. It logs all of them,
+     * or the methods have to be annotated themselves.
+     *
+     * @param classLevel the annotation of the class, or null
+     * @param type       the class
+     * @return an error message or null
+     */
+    static String classLevelError(SlowCallLog classLevel, Class<?> type) {
+        if (classLevel == null)
+            return null;
+        int[] params = classLevel.parameters();
+        if (params.length == 1 && params[0] == -1)
+            return null;
+        return "Cannot have parameters=" + Arrays.toString(params) + " in @SlowCallLog on a class, annotate the methods instead for " + type.getName();
+    }
+
+    /**
+     * Check if a method is covered by a class level annotation
+     *
+     * @param method the method
+     * @return if it is a public method, that can be intercepted, and isn't
+     *         inherited from {@link Object}
+     */
+    static boolean isInterceptable(Method method) {
+        int modifiers = method.getModifiers();
+        return Modifier.isPublic(modifiers) &&
+               !Modifier.isStatic(modifiers) &&
+               !Modifier.isFinal(modifiers) &&
+               !method.isSynthetic() &&
+               method.getDeclaringClass() != Object.class;
+    }
+
+    /**
+     * Name of a method for statistics
+     *
+     * @param method the method
+     * @return fully.qualified.Class.method(fully.qualified.ParameterType, ...)
+     */
+    static String displayName(Method method) {
+        return Stream.of(method.getParameterTypes())
+                .map(SlowCallLogInterceptor::typeName)
+                .collect(Collectors.joining(", ",
+                                            method.getDeclaringClass().getCanonicalName() + "." + method.getName() + "(",
+                                            ")"));
+    }
+
+    /**
+     * Name of a method's timer in the request's {@link StopWatch}
+     *
+     * @param method the method
+     * @return SimpleClassName_method, or the binary name of the class for
+     *         anonymous and local classes
+     */
+    static String timerName(Method method) {
+        Class<?> type = method.getDeclaringClass();
+        String name = type.isAnonymousClass() || type.isLocalClass() ? type.getName() : type.getSimpleName();
+        return name + "_" + method.getName();
+    }
+
+    /**
+     * Name of a type, that tells types with the same simple name apart
+     *
+     * @param type the type
+     * @return canonical name, or binary name for local and anonymous classes
+     */
+    private static String typeName(Class<?> type) {
+        String name = type.getCanonicalName();
+        return name == null ? type.getName() : name;
+    }
+
     /**
      * Check if a type cannot be converted to a meaningful string
      *
@@ -162,30 +331,156 @@ class SlowCallLogInterceptor {
     /**
      * Construct an invoker that logs if duration is too long
      *
-     * @param thresholdInNs how many nanoseconds to allow call to take
-     * @param logger        how to log if duration is exceeded, and call
-     *                      succeeded
-     * @param exception     how to log if duration is exceeded, and call failed
+     * @param config    how many nanoseconds to allow call to take
+     * @param histogram where all call durations are counted
+     * @param site      the method in call trees
+     * @param timer     the method in the request's {@link StopWatch}
+     * @param logger    how to log if duration is exceeded, and call
+     *                  succeeded
+     * @param exception how to log if duration is exceeded, and call failed
      * @return an invoker
      */
-    private static Invoker makeInvoker(long thresholdInNs, LogPrinter logger, LogPrinter exception) {
+    static Invoker makeInvoker(SlowCallConfig config, LatencyHistogram histogram, CallTree.Site site, StopWatch.Key timer, LogPrinter logger, LogPrinter exception) {
         return ic -> {
             long before = System.nanoTime();
+            CallTree tree = CallTree.current();
+            int node = tree == null ? CallTree.UNTRACKED : tree.enter(site, before);
+            StopWatch stopWatch = StopWatch.current();
+            Clock clock = stopWatch == null ? null : stopWatch.time(timer, before);
             try {
-                Object ret = ic.proceed();
+                Object ret = proceed(ic, clock);
                 long duration = System.nanoTime() - before;
-                if (duration >= thresholdInNs)
+                histogram.record(duration, false);
+                if (duration >= config.thresholdInNs())
                     logger.call(duration, ic.getParameters(), ret);
                 return ret;
             } catch (Exception ex) {
                 long duration = System.nanoTime() - before;
-                if (duration >= thresholdInNs)
+                histogram.record(duration, true);
+                if (duration >= config.thresholdInNs())
                     exception.call(duration, ic.getParameters(), makeExceptionString(ex));
                 throw ex;
+            } finally {
+                if (node != CallTree.UNTRACKED)
+                    tree.exit(node, System.nanoTime() - before, config.thresholdInNs());
             }
         };
     }
 
+    /**
+     * Call the intercepted method, and stop the StopWatch timer of the call
+     * <p>
+     * The timer is stopped before anything is logged, so it only times the
+     * method
+     *
+     * @param ic    the invocation
+     * @param clock the timer in the request's {@link StopWatch}, or null
+     * @return the result of the method
+     * @throws Exception if the method throws
+     */
+    private static Object proceed(InvocationContext ic, Clock clock) throws Exception {
+        try {
+            return ic.proceed();
+        } finally {
+            if (clock != null)
+                clock.close();
+        }
+    }
+
+    /**
+     * Check if a method's return type can complete after the call has
+     * returned
+     *
+     * @param returnType the declared return type
+     * @return if the result should be timed until completion
+     */
+    static boolean isAsync(Class<?> returnType) {
+        return CompletionStage.class.isAssignableFrom(returnType) ||
+               Future.class.isAssignableFrom(returnType);
+    }
+
+    /**
+     * Construct an invoker for methods that return a {@link CompletionStage}
+     * (or a {@link Future} that may be one), that logs if the duration until
+     * the result is completed is too long
+     * <p>
+     * The result is logged by the thread that completes it, with the
+     * parameters as they were when the method returned. A call that starts
+     * while logging is disabled isn't logged. Results that
+     * aren't a CompletionStage are timed until the method returns, since
+     * waiting for them would block.
+     *
+     * @param config    how many nanoseconds to allow call to take
+     * @param histogram where all call durations are counted
+     * @param site      the method in call trees, until the method returns
+     * @param timer     the method in the request's {@link StopWatch}
+     * @param logger    how to log if duration is exceeded, and call
+     *                  succeeded
+     * @param exception how to log if duration is exceeded, and call failed
+     * @return an invoker
+     */
+    static Invoker makeAsyncInvoker(SlowCallConfig config, LatencyHistogram histogram, CallTree.Site site, StopWatch.Key timer, LogPrinter logger, LogPrinter exception) {
+        return ic -> {
+            long before = System.nanoTime();
+            CallTree tree = CallTree.current();
+            int node = tree == null ? CallTree.UNTRACKED : tree.enter(site, before);
+            StopWatch stopWatch = StopWatch.current();
+            Object ret;
+            try {
+                ret = ic.proceed();
+            } catch (Exception ex) {
+                long duration = System.nanoTime() - before;
+                histogram.record(duration, true);
+                if (stopWatch != null)
+                    stopWatch.add(timer, before, duration);
+                if (duration >= config.thresholdInNs())
+                    exception.call(duration, ic.getParameters(), makeExceptionString(ex));
+                throw ex;
+            } finally {
+                if (node != CallTree.UNTRACKED)
+                    tree.exit(node, System.nanoTime() - before, config.thresholdInNs());
+            }
+            if (!( ret instanceof CompletionStage )) {
+                long duration = System.nanoTime() - before;
+                histogram.record(duration, false);
+                if (stopWatch != null)
+                    stopWatch.add(timer, before, duration);
+                if (duration >= config.thresholdInNs())
+                    logger.call(duration, ic.getParameters(), ret);
+                return ret;
+            }
+            CompletionStage<?> stage = (CompletionStage<?>) ret;
+            if (stopWatch != null)
+                stopWatch.timedAsync(timer, stage);
+            // The InvocationContext belongs to this invocation, read the
+            // parameters now, and only if the call can be logged
+            Object[] parameters = config.thresholdInNs() == Long.MAX_VALUE ? null : ic.getParameters();
+            stage.whenComplete((value, failure) -> {
+                long duration = System.nanoTime() - before;
+                histogram.record(duration, failure != null);
+                if (parameters != null && duration >= config.thresholdInNs()) {
+                    if (failure == null)
+                        logger.call(duration, parameters, value);
+                    else
+                        exception.call(duration, parameters, makeExceptionString(unwrap(failure)));
+                }
+            });
+            return ret;
+        };
+    }
+
+    /**
+     * Find the exception a stage failed with
+     *
+     * @param failure the exception given to a completion callback
+     * @return the cause of a {@link CompletionException}, or failure itself
+     */
+    private static Throwable unwrap(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null)
+            return failure.getCause();
+        return failure;
+    }
+
     /**
      * If en exception doesn't have a message find the one that does, and give a
      * meaningful message
@@ -222,114 +517,187 @@ class SlowCallLogInterceptor {
      *                      description
      * @param withResult    if the result should be included too
      * @param timingUnit    whe wanted timing unit in the log line
-     * @param logger        the logger methos to use for logging from
-     *                      {@link #loggerForLevel(dk.dbc.commons.slowcalllog.SlowCallLog)}
+     * @param output        where to log the line
+     * @param async         the asynchronous emitter or null if the line
+     *                      should be logged by the calling thread
+     * @param summary       the summary the call should be added to or null
+     *                      if the line should be logged
      * @return a log-printer
      */
-    private static LogPrinter loggerFor(Method method, int[] parameterList, boolean withResult, NanoUnit timingUnit, BiConsumer<String, Object[]> logger) {
-        String className = method.getDeclaringClass().getCanonicalName();
-        String methodName = method.getName();
-        String pattern = new StringBuilder()
-                .append(className) //class
-                .append(".")
-                .append(methodName) // method
-                .append("(")
-                .append(IntStream.of(parameterList) // call args
-                        .mapToObj(i -> "[{}]")
-                        .collect(Collectors.joining(", ")))
-                .append(") ")
-                .append(withResult ? "= [{}] " : "") // optional result
-                .append("({}") //duration
-                .append(timingUnit.unitText())
-                .append(')')
-                .toString();
-        long timeScaler = timingUnit.nanoSeconds();
-
-        return (time, params, result) -> {
+    private static LogPrinter loggerFor(Method method, int[] parameterList, boolean withResult, NanoUnit timingUnit, SlowCallOutput output, AsyncEmitter async, SlowCallSummary summary) {
+        LogTemplate template = new LogTemplate(method.getDeclaringClass().getCanonicalName(), method.getName(),
+                                               parameterList, withResult, timingUnit);
+        if (summary != null)
+            return (time, params, result) -> summary.add(time, template, params, result);
+        if (async != null)
+            return (time, params, result) -> async.emit(output, time, template, params, result);
+        return (time, params, result) -> output.log(time, template.render(time, params, result));
+    }
 
-            ArrayList<Object> values = new ArrayList<>(parameterList.length + 2);
-            for (int parameterPos : parameterList) {
-                values.add(asStringValue(params[parameterPos]));
-            }
-            if (withResult)
-                values.add(result);
-            values.add(( time + timeScaler / 2 ) / timeScaler);
-            Map<String, String> oldMdc = MDC.getCopyOfContextMap();
-            MDC.put(MDC_DURATION, String.valueOf(( (double) time ) / 1_000_000.0)); // ms
-            MDC.put(MDC_CLASS, className);
-            MDC.put(MDC_METHOD, methodName);
-            logger.accept(pattern, values.toArray());
-            if (oldMdc == null)
-                MDC.clear();
-            else
-                MDC.setContextMap(oldMdc);
+    /**
+     * Create the printer for call trees of a method, that logs like the
+     * method's own lines
+     *
+     * @param output  where the method logs
+     * @param async   the asynchronous emitter or null if the line should be
+     *                logged by the calling thread
+     * @param limiter the method's rate limiter or null
+     * @return a tree printer
+     */
+    static CallTree.Printer treePrinter(SlowCallOutput output, AsyncEmitter async, RateLimiter limiter) {
+        CallTree.Printer printer = async == null ?
+                                   output::log :
+                                   (time, line) -> async.emit(output, time, line);
+        if (limiter == null)
+            return printer;
+        return (time, line) -> {
+            if (limiter.allow(System.nanoTime()))
+                printer.print(time, line);
         };
     }
 
     /**
-     * Produce a string value of an object
+     * Make a rate limiter for a method, if the annotation limits it
      * <p>
-     * Ensure that arrays are handled correctly
+     * This also schedules the reporting of suppressed lines
      *
-     * @param param object that should be logged
-     * @return string representation
+     * @param slowCallLog annotation
+     * @param output      where the method logs
+     * @param name        name of the method for the report
+     * @return limiter or null if there is no limit
+     * @throws IllegalArgumentException if the rate or sample ratio is invalid
      */
-    private static String asStringValue(Object param) {
-        if (param != null && param.getClass().isArray())
-            return Arrays.toString((Object[]) param);
-        return String.valueOf(param);
+    private static RateLimiter rateLimiter(SlowCallLog slowCallLog, SlowCallOutput output, String name) throws IllegalArgumentException {
+        double rateLimit = slowCallLog.rateLimit();
+        double sample = slowCallLog.sample();
+        if (!( rateLimit >= 0.0 ))
+            throw new IllegalArgumentException("Cannot have a negative rateLimit");
+        if (!( sample >= 0.0 && sample <= 1.0 ))
+            throw new IllegalArgumentException("Sample should be between 0.0 and 1.0");
+        if (rateLimit == 0.0 && sample == 1.0)
+            return null;
+        String env = System.getenv(SUPPRESSED_REPORT_ENV);
+        long reportPeriod = durationInNs(env == null ? DEFAULT_SUPPRESSED_REPORT : env);
+        if (reportPeriod <= 0)
+            throw new IllegalArgumentException("Invalid report period: " + env + " in $" + SUPPRESSED_REPORT_ENV);
+        RateLimiter limiter = new RateLimiter(rateLimit, sample, System.nanoTime());
+        BackgroundTasks.every(reportPeriod, () -> {
+            long suppressed = limiter.takeSuppressed();
+            if (suppressed != 0)
+                output.logWithoutDuration(suppressed + " suppressed slow calls for " + name);
+        });
+        return limiter;
     }
 
     /**
-     * Get the log-method that produces lines of the expected log-level
+     * Make a summary for a method, if the annotation or environment asks for
+     * it
+     * <p>
+     * This also schedules the logging of the summary
      *
-     * @param slowCallLog definition
-     * @return log method
+     * @param slowCallLog annotation
+     * @param output      where the method logs
+     * @param name        name of the method for the summary line
+     * @return summary or null if each call should be logged
+     * @throws IllegalArgumentException if the window or top is invalid
      */
-    private static BiConsumer<String, Object[]> loggerForLevel(Level logLevel) {
-        switch (logLevel) {
-            case TRACE:
-                if (SlowCallLog.log.isTraceEnabled())
-                    return SlowCallLog.log::trace;
-                break;
-            case DEBUG:
-                if (SlowCallLog.log.isDebugEnabled())
-                    return SlowCallLog.log::debug;
-                break;
-            case INFO:
-                if (SlowCallLog.log.isInfoEnabled())
-                    return SlowCallLog.log::info;
-                break;
-            case WARN:
-                if (SlowCallLog.log.isWarnEnabled())
-                    return SlowCallLog.log::warn;
-                break;
-            case ERROR:
-                return SlowCallLog.log::error;
+    private static SlowCallSummary summary(SlowCallLog slowCallLog, SlowCallOutput output, String name) throws IllegalArgumentException {
+        String window = slowCallLog.summary().trim();
+        if (window.isEmpty()) {
+            String env = System.getenv(SUMMARY_ENV);
+            window = env == null ? "off" : env.trim();
+        }
+        if ("off".equalsIgnoreCase(window))
+            return null;
+        long windowInNs = durationInNs(window);
+        if (windowInNs <= 0)
+            throw new IllegalArgumentException("Invalid summary window: " + window);
+        SlowCallSummary summary = new SlowCallSummary(name, window, slowCallLog.summaryTop(), output);
+        BackgroundTasks.every(windowInNs, summary);
+        return summary;
+    }
+
+    /**
+     * Wrap a log-printer so it only logs when the limiter allows it
+     *
+     * @param printer the log-printer
+     * @param limiter the limiter
+     * @return a log-printer
+     */
+    private static LogPrinter limited(LogPrinter printer, RateLimiter limiter) {
+        return (time, params, result) -> {
+            if (limiter.allow(System.nanoTime()))
+                printer.call(time, params, result);
+        };
+    }
+
+    /**
+     * Figure out how to attach duration, class and method to the log line
+     *
+     * @param slowCallLog annotation
+     * @return mode from the annotation, or if it's default from the
+     *         environment, defaulting to copying the MDC
+     * @throws IllegalArgumentException if the environment variable is not a
+     *                                  known mode
+     */
+    private static SlowCallLog.MdcMode mdcMode(SlowCallLog slowCallLog) throws IllegalArgumentException {
+        return checkMdcMode(mdcMode(slowCallLog.mdc(), System.getenv(MDC_MODE_ENV)), Slf4j.hasKeyValues());
+    }
+
+    /**
+     * Decide how values are attached to the log line
+     *
+     * @param mdcMode from the annotation
+     * @param env     value of {@link #MDC_MODE_ENV}
+     * @return mode, not {@link SlowCallLog.MdcMode#DEFAULT}
+     * @throws IllegalArgumentException if the environment variable is
+     *                                  unknown
+     */
+    static SlowCallLog.MdcMode mdcMode(SlowCallLog.MdcMode mdcMode, String env) throws IllegalArgumentException {
+        if (mdcMode != SlowCallLog.MdcMode.DEFAULT)
+            return mdcMode;
+        if (env == null)
+            return SlowCallLog.MdcMode.COPY;
+        switch (env.trim().toLowerCase(Locale.ROOT)) {
+            case "copy":
+                return SlowCallLog.MdcMode.COPY;
+            case "delta":
+                return SlowCallLog.MdcMode.DELTA;
+            case "event":
+                return SlowCallLog.MdcMode.EVENT;
             default:
-                throw new IllegalArgumentException("Invalid log level: " + logLevel);
+                throw new IllegalArgumentException("Unknown MDC mode: " + env + " in $" + MDC_MODE_ENV);
         }
-        throw new IllegalStateException("Loglevel " + logLevel + " is not enabled for SlowCallLog");
     }
 
     /**
-     * Figure out how much time a slow call needs to take
+     * Check that the log framework supports a mode
+     *
+     * @param mdcMode      the mode
+     * @param hasKeyValues if slf4j-api supports key/values on log events
+     * @return the mode
+     * @throws IllegalArgumentException if the mode needs key/values, and they
+     *                                  aren't supported
+     */
+    static SlowCallLog.MdcMode checkMdcMode(SlowCallLog.MdcMode mdcMode, boolean hasKeyValues) throws IllegalArgumentException {
+        if (mdcMode == SlowCallLog.MdcMode.EVENT && !hasKeyValues)
+            throw new IllegalArgumentException("MDC mode event needs slf4j-api 2.x (key/values on log events), use copy or delta with slf4j-api 1.x");
+        return mdcMode;
+    }
+
+    /**
+     * Get the threshold setting from the environment
      *
      * @param slowCallLog annotation
-     * @return number of nanoseconds
-     * @throws IllegalArgumentException if the environment variable does not
-     *                                  resolve to a duration
+     * @return content of the environment variable
+     * @throws IllegalArgumentException if the environment variable is unset
      */
-    private static long logDuration(SlowCallLog slowCallLog) throws IllegalArgumentException {
+    private static String thresholdValue(SlowCallLog slowCallLog) throws IllegalArgumentException {
         String variableName = slowCallLog.env();
         String env = System.getenv(variableName);
         if (env == null)
             throw new IllegalArgumentException("Unknown variable: $" + variableName + " for logging threshold");
-        if ("off".equalsIgnoreCase(env))
-            return Long.MIN_VALUE;
-        if ("always".equalsIgnoreCase(env))
-            return 0;
-        return (long) ( slowCallLog.scale() * (double) durationInNs(env) );
+        return env;
     }
 
     /**
@@ -339,14 +707,6 @@ class SlowCallLogInterceptor {
      * @return number of nanoseconds
      */
     static long durationInNs(String duration) {
-        try {
-            String[] parts = duration.split("(?=\\D)", 2);
-            if (parts.length != 2)
-                throw new IllegalArgumentException("Don't know duration: " + duration);
-            long amount = Long.parseUnsignedLong(parts[0].trim());
-            return amount * NanoUnit.of(parts[1].trim()).nanoSeconds();
-        } catch (IllegalArgumentException ex) {
-            throw new IllegalArgumentException("Don't know duration: " + duration);
-        }
+        return Durations.inNs(duration);
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import dk.dbc.commons.statistics.LatencySnapshot;
+
+/**
+ * Latency distribution of every call to the {@link SlowCallLog} annotated
+ * methods, not only the slow ones
+ * <p>
+ * Methods are named: {@code fully.qualified.Class.method(fully.qualified.ParameterType, ...)}
+ * and all durations are in nanoseconds.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public final class SlowCallLogStatistics {
+
+    private static final ConcurrentMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private SlowCallLogStatistics() {
+    }
+
+    /**
+     * Get (or create) the histogram for a method
+     *
+     * @param name name of the method
+     * @return histogram
+     */
+    static LatencyHistogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * The distributions for all methods
+     *
+     * @return map of method name to snapshot, sorted by name
+     */
+    public static Map<String, LatencySnapshot> snapshot() {
+        TreeMap<String, LatencySnapshot> snapshots = new TreeMap<>();
+        HISTOGRAMS.forEach((name, histogram) -> snapshots.put(name, histogram.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * The distribution for a single method
+     *
+     * @param name name of the method
+     * @return snapshot or null if the method is unknown
+     */
+    public static LatencySnapshot snapshot(String name) {
+        LatencyHistogram histogram = HISTOGRAMS.get(name);
+        if (histogram == null)
+            return null;
+        return histogram.snapshot();
+    }
+}
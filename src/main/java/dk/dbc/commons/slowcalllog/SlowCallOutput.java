@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.Map;
+import java.util.function.Consumer;
+import org.slf4j.MDC;
+import org.slf4j.event.Level;
+import org.slf4j.spi.LoggingEventBuilder;
+
+/**
+ * Writes a rendered slow-call line to the {@link SlowCallLog#log} logger
+ * <p>
+ * The duration, class and method are attached to the line according to the
+ * {@link SlowCallLog.MdcMode}
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class SlowCallOutput {
+
+    static final String MDC_DURATION = "call_duration_ms";
+    static final String MDC_CLASS = "class";
+    static final String MDC_METHOD = "method";
+    static final String MDC_SLOW_CALLS = "slow_call_count";
+    static final String MDC_SLOW_TOTAL = "slow_call_total_ms";
+    static final String MDC_SLOW_MAX = "slow_call_max_ms";
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final String[] DURATION_KEYS = new String[] {MDC_DURATION};
+    private static final String[] SUMMARY_KEYS = new String[] {MDC_SLOW_CALLS, MDC_SLOW_TOTAL, MDC_SLOW_MAX};
+
+    private final String className;
+    private final String methodName;
+    private final SlowCallConfig config;
+    private final SlowCallLog.MdcMode mdcMode;
+
+    /**
+     * Create an output for a method
+     *
+     * @param className  the fully qualified class name
+     * @param methodName the method name
+     * @param config     the settings of the method, that has the log level
+     * @param mdcMode    how to attach values, not
+     *                   {@link SlowCallLog.MdcMode#DEFAULT}
+     */
+    SlowCallOutput(String className, String methodName, SlowCallConfig config, SlowCallLog.MdcMode mdcMode) {
+        this.className = className;
+        this.methodName = methodName;
+        this.config = config;
+        this.mdcMode = mdcMode;
+    }
+
+    /**
+     * Log a line
+     *
+     * @param time    duration of the call in ns
+     * @param message the rendered log line
+     */
+    void log(long time, String message) {
+        output(message, DURATION_KEYS, new Object[] {durationInMs(time)});
+    }
+
+    /**
+     * Log a line about the method, that isn't a call (no duration)
+     *
+     * @param message the log line
+     */
+    void logWithoutDuration(String message) {
+        output(message, NO_KEYS, NO_KEYS);
+    }
+
+    /**
+     * Log a summary of slow calls
+     *
+     * @param message the log line
+     * @param count   number of slow calls
+     * @param totalNs total duration of the slow calls
+     * @param maxNs   max duration of the slow calls
+     */
+    void logSummary(String message, long count, long totalNs, long maxNs) {
+        output(message, SUMMARY_KEYS, new Object[] {count, durationInMs(totalNs), durationInMs(maxNs)});
+    }
+
+    private void output(String message, String[] keys, Object[] values) {
+        switch (mdcMode) {
+            case EVENT:
+                logWithKeyValues(message, keys, values);
+                break;
+            case DELTA:
+                logWithMdcDelta(message, keys, values);
+                break;
+            default:
+                logWithMdcCopy(message, keys, values);
+                break;
+        }
+    }
+
+    private void logWithMdcCopy(String message, String[] keys, Object[] values) {
+        Map<String, String> oldMdc = MDC.getCopyOfContextMap();
+        for (int i = 0 ; i < keys.length ; i++) {
+            MDC.put(keys[i], String.valueOf(values[i]));
+        }
+        MDC.put(MDC_CLASS, className);
+        MDC.put(MDC_METHOD, methodName);
+        config.state().logger().accept(message);
+        if (oldMdc == null)
+            MDC.clear();
+        else
+            MDC.setContextMap(oldMdc);
+    }
+
+    private void logWithMdcDelta(String message, String[] keys, Object[] values) {
+        String[] oldValues = new String[keys.length];
+        for (int i = 0 ; i < keys.length ; i++) {
+            oldValues[i] = MDC.get(keys[i]);
+            MDC.put(keys[i], String.valueOf(values[i]));
+        }
+        String oldClass = MDC.get(MDC_CLASS);
+        String oldMethod = MDC.get(MDC_METHOD);
+        MDC.put(MDC_CLASS, className);
+        MDC.put(MDC_METHOD, methodName);
+        try {
+            config.state().logger().accept(message);
+        } finally {
+            for (int i = 0 ; i < keys.length ; i++) {
+                restoreMdc(keys[i], oldValues[i]);
+            }
+            restoreMdc(MDC_CLASS, oldClass);
+            restoreMdc(MDC_METHOD, oldMethod);
+        }
+    }
+
+    private void logWithKeyValues(String message, String[] keys, Object[] values) {
+        LoggingEventBuilder event = SlowCallLog.log.atLevel(config.state().level());
+        for (int i = 0 ; i < keys.length ; i++) {
+            event = event.addKeyValue(keys[i], values[i]);
+        }
+        event.addKeyValue(MDC_CLASS, className)
+                .addKeyValue(MDC_METHOD, methodName)
+                .log(message);
+    }
+
+    private static void restoreMdc(String key, String value) {
+        if (value == null)
+            MDC.remove(key);
+        else
+            MDC.put(key, value);
+    }
+
+    static double durationInMs(long time) {
+        return ( (double) time ) / 1_000_000.0;
+    }
+
+    /**
+     * Get the log-method that produces lines of the expected log-level
+     *
+     * @param logLevel the level from {@link SlowCallLog#level()}
+     * @return log method
+     * @throws IllegalStateException if the log level isn't enabled
+     */
+    static Consumer<String> loggerForLevel(Level logLevel) throws IllegalStateException {
+        switch (logLevel) {
+            case TRACE:
+                if (SlowCallLog.log.isTraceEnabled())
+                    return SlowCallLog.log::trace;
+                break;
+            case DEBUG:
+                if (SlowCallLog.log.isDebugEnabled())
+                    return SlowCallLog.log::debug;
+                break;
+            case INFO:
+                if (SlowCallLog.log.isInfoEnabled())
+                    return SlowCallLog.log::info;
+                break;
+            case WARN:
+                if (SlowCallLog.log.isWarnEnabled())
+                    return SlowCallLog.log::warn;
+                break;
+            case ERROR:
+                return SlowCallLog.log::error;
+            default:
+                throw new IllegalArgumentException("Invalid log level: " + logLevel);
+        }
+        throw new IllegalStateException("Loglevel " + logLevel + " is not enabled for SlowCallLog");
+    }
+}
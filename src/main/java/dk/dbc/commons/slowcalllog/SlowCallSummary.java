@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregation of the slow calls to a method over a window
+ * <p>
+ * Count, total and max are lock-free. The slowest calls are kept in a
+ * bounded heap, and only calls that are slower than the fastest of those (or
+ * all until the heap is full) are rendered and take the lock.
+ * <p>
+ * The values of a window are taken one at a time, so a call that completes
+ * while the window is being reported might be counted in one value in this
+ * window, and another in the next.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class SlowCallSummary implements Runnable {
+
+    private static final Comparator<Call> FASTEST_FIRST = Comparator.comparingLong(c -> c.time);
+
+    private final String name;
+    private final String window;
+    private final int top;
+    private final SlowCallOutput output;
+    private final LongAdder count;
+    private final LongAdder total;
+    private final AtomicLong max;
+    private final PriorityQueue<Call> slowest;
+    // Calls must be slower than this to enter the heap
+    private volatile long lowest;
+
+    private static final class Call {
+
+        private final long time;
+        private final String line;
+
+        private Call(long time, String line) {
+            this.time = time;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The slow calls in a window
+     */
+    static final class Window {
+
+        final long count;
+        final long totalNs;
+        final long maxNs;
+        final String[] slowest;
+
+        private Window(long count, long totalNs, long maxNs, String[] slowest) {
+            this.count = count;
+            this.totalNs = totalNs;
+            this.maxNs = maxNs;
+            this.slowest = slowest;
+        }
+    }
+
+    /**
+     * Create a summary
+     *
+     * @param name   name of the method for the log line
+     * @param window the window as it was configured (for the log line)
+     * @param top    number of slowest calls to include
+     * @param output where to log
+     * @throws IllegalArgumentException if top is negative
+     */
+    SlowCallSummary(String name, String window, int top, SlowCallOutput output) throws IllegalArgumentException {
+        if (top < 0)
+            throw new IllegalArgumentException("Cannot have a negative summaryTop");
+        this.name = name;
+        this.window = window;
+        this.top = top;
+        this.output = output;
+        this.count = new LongAdder();
+        this.total = new LongAdder();
+        this.max = new AtomicLong();
+        this.slowest = new PriorityQueue<>(Math.max(1, top), FASTEST_FIRST);
+        this.lowest = top == 0 ? Long.MAX_VALUE : -1L;
+    }
+
+    /**
+     * Count a slow call
+     *
+     * @param time     duration in ns
+     * @param template how to render the call, if it's one of the slowest
+     * @param params   the call parameters
+     * @param result   the result or exception string
+     */
+    void add(long time, LogTemplate template, Object[] params, Object result) {
+        count.increment();
+        total.add(time);
+        max.accumulateAndGet(time, Math::max);
+        if (time > lowest) {
+            String line = template.render(time, params, result);
+            synchronized (this) {
+                if (slowest.size() < top) {
+                    slowest.add(new Call(time, line));
+                } else if (time > slowest.peek().time) {
+                    slowest.poll();
+                    slowest.add(new Call(time, line));
+                }
+                if (slowest.size() == top)
+                    lowest = slowest.peek().time;
+            }
+        }
+    }
+
+    /**
+     * Take the values of the current window, and start a new one
+     *
+     * @return the window, slowest call first
+     */
+    Window take() {
+        long calls = count.sumThenReset();
+        long totalNs = total.sumThenReset();
+        long maxNs = max.getAndSet(0L);
+        String[] lines;
+        synchronized (this) {
+            Call[] heap = slowest.toArray(new Call[slowest.size()]);
+            slowest.clear();
+            lowest = top == 0 ? Long.MAX_VALUE : -1L;
+            Arrays.sort(heap, FASTEST_FIRST.reversed());
+            lines = new String[heap.length];
+            for (int i = 0 ; i < heap.length ; i++) {
+                lines[i] = heap[i].line;
+            }
+        }
+        return new Window(calls, totalNs, maxNs, lines);
+    }
+
+    /**
+     * Log the current window, if it had any slow calls
+     */
+    @Override
+    public void run() {
+        Window taken = take();
+        if (taken.count == 0)
+            return;
+        StringBuilder message = new StringBuilder()
+                .append(taken.count).append(" slow calls to ").append(name)
+                .append(" in ").append(window)
+                .append(", total ").append(SlowCallOutput.durationInMs(taken.totalNs))
+                .append("ms, max ").append(SlowCallOutput.durationInMs(taken.maxNs))
+                .append("ms");
+        for (int i = 0 ; i < taken.slowest.length ; i++) {
+            message.append(i == 0 ? ", slowest: " : "; ").append(taken.slowest[i]);
+        }
+        output.logSummary(message.toString(), taken.count, taken.totalNs, taken.maxNs);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free latency histogram for a method (or a timer)
+ * <p>
+ * Durations are counted in logarithmic buckets: one bucket for everything
+ * below 1µs, then 8 buckets per power of 2 (12.5% precision), up to 2^43ns
+ * (about 2.4 hours). Everything longer is counted in the last bucket.
+ * <p>
+ * The counters are striped by thread id, to keep threads on different cores
+ * from fighting over the same cache lines. A stripe is allocated the first
+ * time a thread uses it.
+ * <p>
+ * Snapshots are taken as {@link LatencySnapshot}.
+ * <p>
+ * The histograms of {@code SlowCallLogStatistics} and
+ * {@code StopWatchStatistics} are of this type.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MIN_EXPONENT = 10;
+    private static final int MAX_EXPONENT = 42;
+    public static final int BUCKETS = 1 + ( MAX_EXPONENT - MIN_EXPONENT + 1 ) * SUB_BUCKETS;
+
+    // Layout of a stripe
+    private static final int EXCEPTIONS = 0;
+    private static final int MAX = 1;
+    private static final int FIRST_BUCKET = 2;
+    private static final int STRIPE_SIZE = FIRST_BUCKET + BUCKETS;
+    private static final int MAX_STRIPES = 64;
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+    private final int mask;
+
+    /**
+     * Create a histogram with a stripe per core (up to 64)
+     */
+    public LatencyHistogram() {
+        this(MAX_STRIPES);
+    }
+
+    /**
+     * Create a histogram with a limited number of stripes
+     * <p>
+     * For when there are many histograms, each stripe takes about 2KB
+     *
+     * @param maxStripes the most stripes to use (rounded down to a power of
+     *                   2)
+     */
+    public LatencyHistogram(int maxStripes) {
+        int stripeCount = Math.min(Integer.highestOneBit(Math.max(1, Math.min(MAX_STRIPES, maxStripes))),
+                                   Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+        this.stripes = new AtomicReferenceArray<>(stripeCount);
+        this.mask = stripeCount - 1;
+    }
+
+    /**
+     * Count a call
+     *
+     * @param ns        duration of the call
+     * @param exception if the call threw an exception
+     */
+    public void record(long ns, boolean exception) {
+        AtomicLongArray stripe = stripe();
+        stripe.incrementAndGet(FIRST_BUCKET + bucket(ns));
+        if (exception)
+            stripe.incrementAndGet(EXCEPTIONS);
+        long max = stripe.get(MAX);
+        while (ns > max && !stripe.compareAndSet(MAX, max, ns)) {
+            max = stripe.get(MAX);
+        }
+    }
+
+    private AtomicLongArray stripe() {
+        int index = (int) Thread.currentThread().getId() & mask;
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(STRIPE_SIZE));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    /**
+     * Collect the counters from all the stripes
+     *
+     * @return snapshot of the histogram
+     */
+    public LatencySnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long exceptions = 0;
+        long max = 0;
+        for (int i = 0 ; i < stripes.length() ; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe == null)
+                continue;
+            for (int bucket = 0 ; bucket < BUCKETS ; bucket++) {
+                counts[bucket] += stripe.get(FIRST_BUCKET + bucket);
+            }
+            exceptions += stripe.get(EXCEPTIONS);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        return new LatencySnapshot(counts, exceptions, max);
+    }
+
+    /**
+     * Collect the bucket counters from all the stripes
+     *
+     * @return count per bucket
+     */
+    public long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0 ; i < stripes.length() ; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe == null)
+                continue;
+            for (int bucket = 0 ; bucket < BUCKETS ; bucket++) {
+                counts[bucket] += stripe.get(FIRST_BUCKET + bucket);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Which bucket a duration is counted in
+     *
+     * @param ns duration
+     * @return bucket number
+     */
+    static int bucket(long ns) {
+        if (ns < ( 1L << MIN_EXPONENT ))
+            return 0;
+        int exponent = 63 - Long.numberOfLeadingZeros(ns);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int subBucket = (int) ( ns >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return 1 + ( exponent - MIN_EXPONENT ) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The highest duration that is counted in a bucket
+     *
+     * @param bucket bucket number
+     * @return duration in ns
+     */
+    static long upperBound(int bucket) {
+        if (bucket == 0)
+            return ( 1L << MIN_EXPONENT ) - 1;
+        int exponent = ( bucket - 1 ) / SUB_BUCKETS + MIN_EXPONENT;
+        int subBucket = ( bucket - 1 ) % SUB_BUCKETS;
+        return ( SUB_BUCKETS + subBucket + 1L ) * ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+    }
+
+    /**
+     * Find the duration below which a fraction of the counts are
+     *
+     * @param counts     count per bucket
+     * @param total      sum of the counts
+     * @param percentile 0.0 - 100.0
+     * @return upper bound of the bucket, or 0 if there are no counts
+     */
+    static long valueAtPercentile(long[] counts, long total, double percentile) {
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int bucket = 0 ; bucket < counts.length ; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank)
+                return upperBound(bucket);
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    /**
+     * Find the duration below which a fraction of the (weighted) counts are
+     *
+     * @param counts     weight per bucket
+     * @param total      sum of the weights
+     * @param percentile 0.0 - 100.0
+     * @return upper bound of the bucket, or 0 if there are no counts
+     */
+    public static long valueAtPercentile(double[] counts, double total, double percentile) {
+        if (total <= 0.0)
+            return 0;
+        double rank = total * percentile / 100.0;
+        double seen = 0.0;
+        for (int bucket = 0 ; bucket < counts.length ; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank)
+                return upperBound(bucket);
+        }
+        return upperBound(counts.length - 1);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.statistics;
+
+import java.util.stream.LongStream;
+
+/**
+ * The distribution of durations (of calls to a method, or of a timer) at a
+ * given time
+ * <p>
+ * This is returned by {@code SlowCallLogStatistics} and
+ * {@code StopWatchStatistics}
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public final class LatencySnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long exceptions;
+    private final long max;
+
+    LatencySnapshot(long[] counts, long exceptions, long max) {
+        this.counts = counts;
+        this.count = LongStream.of(counts).sum();
+        // An exception can be counted before its bucket is, when updated concurrently
+        this.exceptions = Math.min(exceptions, count);
+        this.max = max;
+    }
+
+    /**
+     * Number of calls
+     *
+     * @return count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Number of calls that returned normally
+     *
+     * @return count
+     */
+    public long getOkCount() {
+        return Math.max(0, count - exceptions);
+    }
+
+    /**
+     * Number of calls that threw an exception
+     *
+     * @return count
+     */
+    public long getExceptionCount() {
+        return exceptions;
+    }
+
+    /**
+     * The longest call
+     *
+     * @return duration in ns
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Duration that 50% of the calls are faster than
+     *
+     * @return duration in ns
+     */
+    public long getP50() {
+        return getPercentile(50.0);
+    }
+
+    /**
+     * Duration that 90% of the calls are faster than
+     *
+     * @return duration in ns
+     */
+    public long getP90() {
+        return getPercentile(90.0);
+    }
+
+    /**
+     * Duration that 99% of the calls are faster than
+     *
+     * @return duration in ns
+     */
+    public long getP99() {
+        return getPercentile(99.0);
+    }
+
+    /**
+     * Duration that a given percentage of the calls are faster than
+     * <p>
+     * This is accurate to within 12.5%
+     *
+     * @param percentile 0.0 - 100.0
+     * @return duration in ns
+     */
+    public long getPercentile(double percentile) {
+        return Math.min(max, LatencyHistogram.valueAtPercentile(counts, count, percentile));
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot{" + "count=" + count + ", exceptions=" + exceptions +
+               ", p50=" + getP50() + ", p90=" + getP90() + ", p99=" + getP99() + ", max=" + max + '}';
+    }
+}
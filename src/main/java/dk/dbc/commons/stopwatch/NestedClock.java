@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A clock that knows which clock (of the same thread) it is nested in
+ * <p>
+ * When it stops, its time is added to the parent's time spent in children,
+ * so the parent's exclusive (self) time can be computed. The running clocks
+ * of a thread form a stack, of all StopWatches, linked through previous. The
+ * parent is the nearest clock on the stack of the same StopWatch.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class NestedClock implements Clock {
+
+    private static final ThreadLocal<NestedClock> TOP = new ThreadLocal<>();
+
+    private final StopWatch stopWatch;
+    private final ConcurrentMap<String, TimerEntry> timers;
+    private final TimerEntry base;
+    private final boolean paths;
+    private TimerEntry entry;
+    private NestedClock parent;
+    // The top of the stack when this was started
+    private NestedClock previous;
+    private long started;
+    private long children;
+
+    /**
+     * Create a clock, that isn't running
+     *
+     * @param stopWatch the owner of the timer
+     * @param timers    where path qualified timers are registered
+     * @param base      the timer
+     * @param paths     if the name of the timer should include the names of
+     *                  the parents
+     */
+    NestedClock(StopWatch stopWatch, ConcurrentMap<String, TimerEntry> timers, TimerEntry base, boolean paths) {
+        this.stopWatch = stopWatch;
+        this.timers = timers;
+        this.base = base;
+        this.paths = paths;
+    }
+
+    /**
+     * Start the clock, and put it on top of the thread's stack
+     *
+     * @return this
+     */
+    NestedClock start() {
+        return start(System.nanoTime());
+    }
+
+    /**
+     * Start the clock at a time that has already been read, and put it on top
+     * of the thread's stack
+     *
+     * @param started {@link System#nanoTime()} when the timing started
+     * @return this
+     */
+    NestedClock start(long started) {
+        previous = TOP.get();
+        parent = previous;
+        while (parent != null && parent.stopWatch != stopWatch) {
+            parent = parent.previous;
+        }
+        entry = paths && parent != null ? parent.entry.child(base, timers) : base;
+        children = 0;
+        TOP.set(this);
+        this.started = started;
+        return this;
+    }
+
+    @Override
+    public void close() {
+        long duration = System.nanoTime() - started;
+        stopWatch.record(entry, started, duration, duration - children);
+        if (parent != null)
+            parent.children += duration;
+        if (TOP.get() == this)
+            TOP.set(previous);
+        parent = null;
+        previous = null;
+    }
+}
@@ -18,23 +18,47 @@
  */
 package dk.dbc.commons.stopwatch;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
+import dk.dbc.commons.shared.Durations;
+import dk.dbc.commons.shared.Slf4j;
+import jakarta.enterprise.inject.Vetoed;
 import javax.annotation.CheckReturnValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
+import org.slf4j.spi.LoggingEventBuilder;
 
 /**
  *
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
+@Vetoed
 public class StopWatch {
 
     private static final Logger log = LoggerFactory.getLogger(StopWatch.class);
 
+    // Environment variable with how the TIMING line is logged
+    static final String OUTPUT_ENV = "STOPWATCH_MDC";
+    private static final boolean OUTPUT_AS_EVENT = outputAsEvent(System.getenv(OUTPUT_ENV), Slf4j.hasKeyValues());
+    // Environment variable with if (and how) nested timers are tracked
+    static final String NESTING_ENV = "STOPWATCH_NESTING";
+    private static final String NESTING = nesting(System.getenv(NESTING_ENV));
+    private static final boolean NESTED = !NESTING.equals("off");
+    private static final boolean PATHS = NESTING.equals("path");
+    // Environment variables with which TIMING lines are logged
+    static final String THRESHOLD_ENV = "STOPWATCH_THRESHOLD";
+    static final String SAMPLE_ENV = "STOPWATCH_SAMPLE";
+    private static final long THRESHOLD_IN_NS = threshold(System.getenv(THRESHOLD_ENV));
+    private static final double SAMPLE = sample(System.getenv(SAMPLE_ENV), THRESHOLD_IN_NS);
+
     /**
      * A supplier like {@link Supplier} that throws exception(s)
      *
@@ -61,6 +85,27 @@ public class StopWatch {
         void perform() throws Exception;
     }
 
+    /**
+     * A supplier like {@link Supplier} that throws a given type of exception
+     *
+     * @param <T> the type of results supplied by this supplier
+     * @param <E> the type of exception thrown
+     */
+    public interface ThrowingSupplier<T, E extends Exception> {
+
+        T get() throws E;
+    }
+
+    /**
+     * A Code block that throws a given type of exception
+     *
+     * @param <E> the type of exception thrown
+     */
+    public interface ThrowingBlock<E extends Exception> {
+
+        void perform() throws E;
+    }
+
     /**
      * Wrapper for carrying return value or exception
      *
@@ -92,32 +137,275 @@ public class StopWatch {
         <E extends Exception> Value<T> checkFor(Class<E> clazz) throws E;
     }
 
-    private static class TimerEntry {
+    /**
+     * Receiver of the accumulated timers
+     */
+    @FunctionalInterface
+    interface TimerVisitor {
+
+        void accept(String name, long ns, long count);
+    }
+
+    /**
+     * A pre-resolved timer name
+     * <p>
+     * Declare it once, ex. {@code static final StopWatch.Key DB = StopWatch.key("db");}
+     * and use it with {@link #time(dk.dbc.commons.stopwatch.StopWatch.Key)}.
+     * The name is cleaned when the key is made, and the timer is found by a
+     * fixed index.
+     */
+    public static final class Key {
 
-        private long ns;
-        private int count;
+        private final String name;
+        private final int index;
 
-        private TimerEntry() {
-            this.ns = 0;
-            this.count = 0;
+        private Key(String name, int index) {
+            this.name = name;
+            this.index = index;
         }
 
-        private synchronized void add(long ns) {
-            this.ns += ns;
-            this.count++;
+        /**
+         * The {@link MDC} name of the timer
+         *
+         * @return name
+         */
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "StopWatch.Key{" + name + '}';
         }
     }
 
+    /**
+     * A clock for timing the same thing many times, ex. in a loop
+     * <p>
+     * {@link #start()} returns the clock itself, so nothing is allocated per
+     * timing:
+     * <pre>
+     * ReusableClock db = stopWatch.clock(DB);
+     * for (...) {
+     *     try (Clock c = db.start()) {
+     *         ...
+     *     }
+     * }
+     * </pre>
+     * It can only time one scope at a time, and must only be used by one
+     * thread at a time.
+     */
+    public static final class ReusableClock implements Clock {
+
+        private final StopWatch stopWatch;
+        private final TimerEntry entry;
+        // Used instead of started, when nesting is tracked
+        private final NestedClock nested;
+        private long started;
+        private boolean running;
+
+        private ReusableClock(StopWatch stopWatch, TimerEntry entry, NestedClock nested) {
+            this.stopWatch = stopWatch;
+            this.entry = entry;
+            this.nested = nested;
+            this.started = 0;
+            this.running = false;
+        }
+
+        /**
+         * Start timing
+         *
+         * @return this, to be closed when the scope ends
+         * @throws IllegalStateException if the clock is already running
+         */
+        public Clock start() {
+            if (running)
+                throw new IllegalStateException("Clock is already running");
+            running = true;
+            if (nested != null)
+                nested.start();
+            else
+                started = System.nanoTime();
+            return this;
+        }
+
+        /**
+         * Stop timing and add the time to the timer, if the clock is running
+         */
+        @Override
+        public void close() {
+            if (running) {
+                running = false;
+                if (nested != null)
+                    nested.close();
+                else
+                    stopWatch.stopped(entry, started);
+            }
+        }
+    }
+
+    /**
+     * A StopWatch for a unit of work, that isn't a Jersey request
+     * <p>
+     * The StopWatch is {@link #current()} until the scope is closed, then the
+     * TIMING line is logged like at the end of a request:
+     * <pre>
+     * for (Job job : jobs) {
+     *     try (StopWatch.Scope scope = StopWatch.scope("job")) {
+     *         StopWatch stopWatch = scope.getStopWatch();
+     *         ...
+     *     }
+     * }
+     * </pre>
+     */
+    public static final class Scope implements AutoCloseable {
+
+        private final StopWatch stopWatch;
+        private final StopWatch previous;
+        private boolean closed;
+
+        private Scope(StopWatch stopWatch) {
+            this.stopWatch = stopWatch;
+            this.previous = bind(stopWatch);
+            this.closed = false;
+        }
+
+        /**
+         * The StopWatch of the scope
+         *
+         * @return stopwatch
+         */
+        public StopWatch getStopWatch() {
+            return stopWatch;
+        }
+
+        /**
+         * End the scope, log the TIMING line (unless timedAsync() calls are
+         * outstanding), and restore the previous {@link #current()}
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                stopWatch.dispose();
+                bind(previous);
+            }
+        }
+    }
+
+    /**
+     * A request StopWatch bound to the thread that provided it
+     * <p>
+     * The request can outlive the thread's work on it (ex. a suspended
+     * AsyncResponse, or outstanding timedAsync() calls), so the binding is
+     * undone when the thread leaves the request, not when the TIMING line is
+     * logged.
+     */
+    static final class RequestBinding {
+
+        private final StopWatch stopWatch;
+        private final StopWatch previous;
+
+        private RequestBinding(StopWatch stopWatch) {
+            this.stopWatch = stopWatch;
+            this.previous = bind(stopWatch);
+            REQUEST.set(this);
+        }
+
+        /**
+         * Restore the StopWatch the thread had before, if this is the thread's
+         * request binding
+         * <p>
+         * Does nothing on other threads
+         */
+        void unbind() {
+            if (REQUEST.get() == this) {
+                REQUEST.remove();
+                if (CURRENT.get() == stopWatch)
+                    bind(previous);
+            }
+        }
+    }
+
+    // The StopWatch of the request the thread is working on
+    private static final ThreadLocal<StopWatch> CURRENT = new ThreadLocal<>();
+    // The binding of the request StopWatch provided by Jersey or CDI
+    private static final ThreadLocal<RequestBinding> REQUEST = new ThreadLocal<>();
+    // If any StopWatch has been bound, so current() doesn't look in the
+    // ThreadLocal in applications without them
+    private static boolean bound = false;
+
+    private static final ConcurrentMap<String, Key> KEYS = new ConcurrentHashMap<>();
+    private static final AtomicInteger KEY_COUNT = new AtomicInteger();
+    // Key timers are kept in chunks of 16, so a StopWatch only allocates for
+    // the keys it uses, not for every key in the application
+    private static final int CHUNK_BITS = 4;
+    private static final int CHUNK_MASK = ( 1 << CHUNK_BITS ) - 1;
+    private static final TimerEntry[][] NO_SLOTS = new TimerEntry[0][];
+
+    // Timers by MDC name
     private final ConcurrentMap<String, TimerEntry> timers;
+    // Timers by Key index, in chunks that are allocated when a key in them is
+    // used the first time
+    private volatile TimerEntry[][] slots;
+    // Timers by the name given to time(), to avoid cleaning the name on every call
+    private final ConcurrentMap<String, TimerEntry> timersByName;
     private final ConcurrentMap<String, String> mdc;
     private final long start;
+    private volatile String endpoint;
+    // The request scope and outstanding timedAsync() calls, the TIMING line is logged when it reaches 0
+    private final AtomicInteger outstanding;
+    // The order of the timings, null unless timelines are enabled
+    private final Timeline timeline;
 
     public StopWatch() {
         this.timers = new ConcurrentHashMap<>();
+        this.timersByName = new ConcurrentHashMap<>();
+        this.slots = NO_SLOTS;
+        this.outstanding = new AtomicInteger(1);
         this.mdc = new ConcurrentHashMap<>();
+        this.timeline = Timeline.forRequest();
         this.start = System.nanoTime();
     }
 
+    /**
+     * Get the key for a timer name
+     * <p>
+     * The same name gives the same key
+     *
+     * @param name {@link MDC} name of timing information
+     * @return key
+     */
+    public static Key key(String name) {
+        return KEYS.computeIfAbsent(cleanName(name), n -> new Key(n, KEY_COUNT.getAndIncrement()));
+    }
+
+    private static String cleanName(String name) {
+        return name.replaceAll("[^_0-9a-zA-Z]", "");
+    }
+
+    /**
+     * Start a scope with a new StopWatch, for work outside of a request
+     *
+     * @return scope to be closed when the work is done
+     */
+    public static Scope scope() {
+        return new Scope(new StopWatch());
+    }
+
+    /**
+     * Start a scope with a new StopWatch, for work outside of a request
+     *
+     * @param endpoint name the timers are collected under in
+     *                 {@link StopWatchStatistics}
+     * @return scope to be closed when the work is done
+     */
+    public static Scope scope(String endpoint) {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.setEndpoint(endpoint);
+        return new Scope(stopWatch);
+    }
+
     /**
      * Register an {@link MDC} entry
      *
@@ -137,17 +425,339 @@ public class StopWatch {
 
     /**
      * Log the registered times
+     * <p>
+     * If {@link #timedAsync(java.lang.String, java.util.concurrent.CompletionStage)}
+     * timers are outstanding, the logging is done by the thread that completes
+     * the last of them
      */
-    @SuppressFBWarnings(value = "IS2_INCONSISTENT_SYNC", justification = "This is not called in a threaded context - only upon context cleanup")
     void dispose() {
+        if (CURRENT.get() == this)
+            CURRENT.remove();
+        if (outstanding.decrementAndGet() == 0)
+            emit(false);
+    }
+
+    /**
+     * The StopWatch of the request the current thread is working on
+     * <p>
+     * This is set when Jersey or CDI provides a StopWatch for the request, in
+     * a {@link #scope()}, and for tasks run by a
+     * {@link StopWatchExecutorService}
+     *
+     * @return StopWatch or null if there is none, or it has been logged
+     */
+    public static StopWatch current() {
+        if (!bound)
+            return null;
+        StopWatch stopWatch = CURRENT.get();
+        if (stopWatch != null && stopWatch.outstanding.get() <= 0) {
+            CURRENT.remove();
+            return null;
+        }
+        return stopWatch;
+    }
+
+    /**
+     * Set the StopWatch of the current thread
+     *
+     * @param stopWatch the new StopWatch, or null
+     * @return the previous StopWatch of the thread, for restoring
+     */
+    static StopWatch bind(StopWatch stopWatch) {
+        StopWatch previous = CURRENT.get();
+        if (stopWatch == null) {
+            CURRENT.remove();
+        } else {
+            bound = true;
+            CURRENT.set(stopWatch);
+        }
+        return previous;
+    }
+
+    /**
+     * Bind the StopWatch of a request to the current thread
+     * <p>
+     * A request binding left on the thread by an earlier request is undone
+     * first
+     *
+     * @param stopWatch the request's StopWatch
+     * @return the binding, to be undone on this thread
+     */
+    static RequestBinding bindRequest(StopWatch stopWatch) {
+        unbindRequest();
+        return new RequestBinding(stopWatch);
+    }
+
+    /**
+     * Undo the request binding of the current thread, if any
+     * <p>
+     * This is called when the thread is done with the request, even if the
+     * request isn't
+     */
+    static void unbindRequest() {
+        RequestBinding binding = REQUEST.get();
+        if (binding != null)
+            binding.unbind();
+    }
+
+    /**
+     * Add a time, that has been measured elsewhere, to a timer
+     *
+     * @param key     timer from {@link #key(java.lang.String)}
+     * @param started {@link System#nanoTime()} when the time started
+     * @param ns      duration
+     */
+    public void add(Key key, long started, long ns) {
+        record(entry(key), started, ns);
+    }
+
+    /**
+     * Add the time since started to a timer
+     *
+     * @param entry   timer
+     * @param started {@link System#nanoTime()} when the timing started
+     */
+    private void stopped(TimerEntry entry, long started) {
+        record(entry, started, System.nanoTime() - started);
+    }
+
+    /**
+     * Add a time, that has no nested timers, to a timer, and to the timeline
+     * if enabled
+     *
+     * @param entry    timer
+     * @param started  {@link System#nanoTime()} when the timing started
+     * @param duration duration in ns
+     */
+    void record(TimerEntry entry, long started, long duration) {
+        record(entry, started, duration, duration);
+    }
+
+    /**
+     * Add a time to a timer, and to the timeline if enabled
+     *
+     * @param entry    timer
+     * @param started  {@link System#nanoTime()} when the timing started
+     * @param duration duration in ns
+     * @param self     the part of the duration not spent in nested timers
+     */
+    void record(TimerEntry entry, long started, long duration, long self) {
+        entry.add(duration);
+        entry.selfNs.add(self);
+        if (timeline != null)
+            timeline.add(entry.name, started - start, duration);
+    }
+
+    private void emit(boolean deferred) {
+        long totalNs = System.nanoTime() - start;
+        if (StopWatchStatistics.isEnabled())
+            StopWatchStatistics.record(endpoint, this, totalNs);
+        if (timeline != null)
+            timeline.emit(totalNs, mdc, endpoint);
+        if (!log.isInfoEnabled() || !shouldLog(totalNs, THRESHOLD_IN_NS, SAMPLE))
+            return;
+        if (OUTPUT_AS_EVENT)
+            disposeAsEvent(totalNs);
+        else
+            disposeAsMdc(deferred, totalNs);
+    }
+
+    /**
+     * Decide if a TIMING line should be logged
+     *
+     * @param totalNs     duration of the request
+     * @param thresholdNs requests at least this long are always logged
+     * @param sample      the ratio of the faster requests that are logged
+     * @return if the line should be logged
+     */
+    static boolean shouldLog(long totalNs, long thresholdNs, double sample) {
+        if (totalNs >= thresholdNs || sample >= 1.0)
+            return true;
+        return sample > 0.0 && ThreadLocalRandom.current().nextDouble() < sample;
+    }
+
+    /**
+     * Parse the threshold environment variable
+     *
+     * @param env value of {@link #THRESHOLD_ENV}
+     * @return threshold in ns, 0 if every request should be logged
+     */
+    static long threshold(String env) {
+        if (env == null || env.isBlank())
+            return 0;
+        try {
+            return Durations.inNs(env.trim());
+        } catch (IllegalArgumentException ex) {
+            log.warn("Unknown duration: {} in ${}, logging every request", env, THRESHOLD_ENV);
+            return 0;
+        }
+    }
+
+    /**
+     * Parse the sample environment variable
+     *
+     * @param env         value of {@link #SAMPLE_ENV}
+     * @param thresholdNs the threshold, for the default value
+     * @return ratio of the requests under the threshold that are logged,
+     *         default is none if there's a threshold, otherwise all
+     */
+    static double sample(String env, long thresholdNs) {
+        double fallback = thresholdNs > 0 ? 0.0 : 1.0;
+        if (env == null || env.isBlank())
+            return fallback;
+        try {
+            double sample = Double.parseDouble(env.trim());
+            if (sample >= 0.0 && sample <= 1.0)
+                return sample;
+        } catch (NumberFormatException ex) {
+            log.debug("Cannot parse: {}", env, ex);
+        }
+        log.warn("Unknown ratio: {} in ${}, using {}", env, SAMPLE_ENV, fallback);
+        return fallback;
+    }
+
+    /**
+     * Set the name the timers are collected under in
+     * {@link StopWatchStatistics}
+     *
+     * @param endpoint ex. fully.qualified.Class.method
+     */
+    void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Log the timers as strings in the {@link MDC}, replacing the thread's
+     * MDC
+     *
+     * @param deferred if the thread isn't the request's, and its MDC should be
+     *                 restored
+     * @param totalNs  duration of the request
+     */
+    private void disposeAsMdc(boolean deferred, long totalNs) {
+        Map<String, String> oldMdc = deferred ? MDC.getCopyOfContextMap() : null;
         MDC.setContextMap(mdc);
-        timers.forEach((name, entry) -> {
-            MDC.put(name + "_ms", String.valueOf(( (double) entry.ns ) / 1_000_000.0));
-            MDC.put(name + "_count", String.valueOf(entry.count));
+        forEachTimer((name, ns, count) -> {
+            MDC.put(name + "_ms", String.valueOf(( (double) ns ) / 1_000_000.0));
+            MDC.put(name + "_count", String.valueOf(count));
         });
-        MDC.put("total_ms", String.valueOf(( (double) System.nanoTime() - start ) / 1_000_000.0));
+        if (NESTED)
+            forEachTimerSelf((name, ns, count) -> MDC.put(name + "_self_ms", String.valueOf(( (double) ns ) / 1_000_000.0)));
+        MDC.put("total_ms", String.valueOf(( (double) totalNs ) / 1_000_000.0));
         log.info("TIMING");
-        MDC.clear();
+        if (oldMdc == null)
+            MDC.clear();
+        else
+            MDC.setContextMap(oldMdc);
+    }
+
+    /**
+     * Log the timers as numeric key/values on the log event, without touching
+     * the thread's {@link MDC}
+     * <p>
+     * Durations are whole microseconds ({@code _us}), counts are longs
+     *
+     * @param totalNs duration of the request
+     */
+    void disposeAsEvent(long totalNs) {
+        LoggingEventBuilder event = log.atInfo();
+        for (Map.Entry<String, String> entry : mdc.entrySet()) {
+            event = event.addKeyValue(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, TimerEntry> entry : timers.entrySet()) {
+            String name = entry.getKey();
+            TimerEntry timer = entry.getValue();
+            long count = timer.count.sum();
+            if (PATHS && count == 0)
+                continue;
+            event = event.addKeyValue(name + "_us", timer.ns.sum() / 1_000L)
+                    .addKeyValue(name + "_count", count);
+            if (NESTED)
+                event = event.addKeyValue(name + "_self_us", timer.selfNs.sum() / 1_000L);
+        }
+        event.addKeyValue("total_us", totalNs / 1_000L)
+                .log("TIMING");
+    }
+
+    /**
+     * Decide how the TIMING line is logged
+     *
+     * @param env          value of {@link #OUTPUT_ENV}
+     * @param hasKeyValues if slf4j-api supports key/values on log events
+     * @return true for key/values on the event, false for the MDC
+     */
+    static boolean outputAsEvent(String env, boolean hasKeyValues) {
+        if (env == null)
+            return false;
+        switch (env.trim().toLowerCase(Locale.ROOT)) {
+            case "event":
+                if (hasKeyValues)
+                    return true;
+                log.error("StopWatch output mode: event in ${} needs slf4j-api 2.x (key/values on log events), using copy", OUTPUT_ENV);
+                return false;
+            case "copy":
+            case "":
+                return false;
+            default:
+                log.warn("Unknown StopWatch output mode: {} in ${}, using copy", env, OUTPUT_ENV);
+                return false;
+        }
+    }
+
+    /**
+     * Decide if nested timers are tracked
+     *
+     * @param env value of {@link #NESTING_ENV}
+     * @return off, self (exclusive time) or path (exclusive time and path
+     *         qualified names)
+     */
+    static String nesting(String env) {
+        if (env == null)
+            return "off";
+        String mode = env.trim().toLowerCase(Locale.ROOT);
+        switch (mode) {
+            case "self":
+            case "path":
+            case "off":
+                return mode;
+            case "":
+                return "off";
+            default:
+                log.warn("Unknown StopWatch nesting mode: {} in ${}, using off", env, NESTING_ENV);
+                return "off";
+        }
+    }
+
+    /**
+     * Visit all the timers
+     * <p>
+     * The values are exact, if no timing is in progress. When path qualified
+     * names are used, timers that have only been used nested are skipped
+     * under their unqualified name
+     *
+     * @param visitor receiver of name, accumulated ns and count
+     */
+    void forEachTimer(TimerVisitor visitor) {
+        timers.forEach((name, entry) -> {
+            long count = entry.count.sum();
+            if (!PATHS || count != 0)
+                visitor.accept(name, entry.ns.sum(), count);
+        });
+    }
+
+    /**
+     * Visit all the timers, with the time not spent in nested timers
+     * <p>
+     * Only meaningful when nesting is tracked
+     *
+     * @param visitor receiver of name, exclusive ns and count
+     */
+    void forEachTimerSelf(TimerVisitor visitor) {
+        timers.forEach((name, entry) -> {
+            long count = entry.count.sum();
+            if (!PATHS || count != 0)
+                visitor.accept(name, entry.selfNs.sum(), count);
+        });
     }
 
     /**
@@ -157,9 +767,183 @@ public class StopWatch {
      * @return auto-closable context
      */
     public Clock time(String name) {
-        TimerEntry entry = timers.computeIfAbsent(name.replaceAll("[^_0-9a-zA-Z]", ""), s -> new TimerEntry());
+        return clock(entry(name));
+    }
+
+    /**
+     * Create a timing context
+     *
+     * @param key timer from {@link #key(java.lang.String)}
+     * @return auto-closable context
+     */
+    public Clock time(Key key) {
+        return clock(entry(key));
+    }
+
+    /**
+     * Create a timing context, for a timing that has already started
+     * <p>
+     * For code that reads the clock itself, ex. to time a call for more than
+     * the StopWatch. The timer nests like
+     * {@link #time(dk.dbc.commons.stopwatch.StopWatch.Key)}, so timers
+     * started before it is closed are nested in it.
+     *
+     * @param key     timer from {@link #key(java.lang.String)}
+     * @param started {@link System#nanoTime()} when the timing started
+     * @return auto-closable context
+     */
+    public Clock time(Key key, long started) {
+        return clock(entry(key), started);
+    }
+
+    /**
+     * Create a clock that can be started many times, without allocating
+     * <p>
+     * The clock is not thread safe, each thread should have its own.
+     *
+     * @param name {@link MDC} name of timing information
+     * @return clock that isn't running
+     */
+    public ReusableClock clock(String name) {
+        return reusableClock(entry(name));
+    }
+
+    /**
+     * Create a clock that can be started many times, without allocating
+     * <p>
+     * The clock is not thread safe, each thread should have its own.
+     *
+     * @param key timer from {@link #key(java.lang.String)}
+     * @return clock that isn't running
+     */
+    public ReusableClock clock(Key key) {
+        return reusableClock(entry(key));
+    }
+
+    private TimerEntry entry(String name) {
+        TimerEntry entry = timersByName.get(name);
+        if (entry == null)
+            entry = timersByName.computeIfAbsent(name, n -> timers.computeIfAbsent(cleanName(n), TimerEntry::new));
+        return entry;
+    }
+
+    private TimerEntry entry(Key key) {
+        TimerEntry[][] current = slots;
+        int c = key.index >>> CHUNK_BITS;
+        TimerEntry[] chunk = c < current.length ? current[c] : null;
+        TimerEntry entry = chunk != null ? chunk[key.index & CHUNK_MASK] : null;
+        if (entry == null)
+            entry = slot(key);
+        return entry;
+    }
+
+    /**
+     * Find or make the timer of a key, that hasn't been used by this StopWatch
+     * <p>
+     * The chunk table only grows by doubling, and only to the chunk of the
+     * key. A timer that is seen through a race is safe to use, it has only
+     * final fields.
+     *
+     * @param key timer key
+     * @return timer
+     */
+    private synchronized TimerEntry slot(Key key) {
+        TimerEntry[][] current = slots;
+        int c = key.index >>> CHUNK_BITS;
+        if (c >= current.length)
+            current = Arrays.copyOf(current, Math.max(c + 1, current.length * 2));
+        TimerEntry[] chunk = current[c];
+        if (chunk == null)
+            chunk = current[c] = new TimerEntry[CHUNK_MASK + 1];
+        TimerEntry entry = chunk[key.index & CHUNK_MASK];
+        if (entry == null)
+            entry = chunk[key.index & CHUNK_MASK] = timers.computeIfAbsent(key.name, TimerEntry::new);
+        slots = current;
+        return entry;
+    }
+
+    private Clock clock(TimerEntry entry) {
+        return clock(entry, System.nanoTime());
+    }
+
+    private Clock clock(TimerEntry entry, long started) {
+        NestedClock nested = begin(entry, started);
+        if (nested != null)
+            return nested;
+        return () -> stopped(entry, started);
+    }
+
+    private ReusableClock reusableClock(TimerEntry entry) {
+        return new ReusableClock(this, entry, NESTED ? new NestedClock(this, timers, entry, PATHS) : null);
+    }
+
+    /**
+     * Time an asynchronous computation, from now until it completes
+     * <p>
+     * The TIMING line isn't logged until all the timed stages have completed,
+     * even if the request scope has ended. Stages that are timed after the
+     * line has been logged are timed, but the time is not logged.
+     *
+     * @param <T>   type of the value
+     * @param name  {@link MDC} name of timing information
+     * @param stage the computation
+     * @return a stage that completes as the given one, after the time is
+     *         registered
+     */
+    public <T> CompletionStage<T> timedAsync(String name, CompletionStage<T> stage) {
+        return timedAsyncBy(entry(name), stage);
+    }
+
+    /**
+     * Time an asynchronous computation, from now until it completes
+     *
+     * @param <T>   type of the value
+     * @param key   timer from {@link #key(java.lang.String)}
+     * @param stage the computation
+     * @return a stage that completes as the given one, after the time is
+     *         registered
+     * @see #timedAsync(java.lang.String, java.util.concurrent.CompletionStage)
+     */
+    public <T> CompletionStage<T> timedAsync(Key key, CompletionStage<T> stage) {
+        return timedAsyncBy(entry(key), stage);
+    }
+
+    private <T> CompletionStage<T> timedAsyncBy(TimerEntry entry, CompletionStage<T> stage) {
         long nano = System.nanoTime();
-        return () -> entry.add(System.nanoTime() - nano);
+        boolean tracked = track();
+        return stage.whenComplete((value, failure) -> {
+            stopped(entry, nano);
+            if (tracked)
+                release();
+        });
+    }
+
+    /**
+     * Register outstanding asynchronous work, that the TIMING line should wait
+     * for
+     *
+     * @return false if the TIMING line has already been logged
+     */
+    boolean track() {
+        for (;;) {
+            int count = outstanding.get();
+            if (count <= 0) {
+                log.debug("Timing after TIMING has been logged");
+                return false;
+            }
+            if (outstanding.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Complete outstanding asynchronous work, from {@link #track()}
+     * <p>
+     * Logs the TIMING line if this is the last, and the request is done
+     */
+    void release() {
+        if (outstanding.decrementAndGet() == 0)
+            emit(true);
     }
 
     /**
@@ -171,9 +955,19 @@ public class StopWatch {
      * @return the result of {@link Supplier#get()}
      */
     public <T> T timed(String name, Supplier<T> supplier) {
-        try (Clock timer = time(name)) {
-            return supplier.get();
-        }
+        return timedBy(entry(name), supplier);
+    }
+
+    /**
+     * Call a supplier and time it
+     *
+     * @param <T>      type of return value
+     * @param key      timer from {@link #key(java.lang.String)}
+     * @param supplier method that produces a value
+     * @return the result of {@link Supplier#get()}
+     */
+    public <T> T timed(Key key, Supplier<T> supplier) {
+        return timedBy(entry(key), supplier);
     }
 
     /**
@@ -183,13 +977,25 @@ public class StopWatch {
      * @param block code segment to time
      */
     public void timed(String name, VoidBlock block) {
-        try (Clock timer = time(name)) {
-            block.perform();
-        }
+        timedBy(entry(name), block);
+    }
+
+    /**
+     * Call a code segment and time it
+     *
+     * @param key   timer from {@link #key(java.lang.String)}
+     * @param block code segment to time
+     */
+    public void timed(Key key, VoidBlock block) {
+        timedBy(entry(key), block);
     }
 
     /**
      * Call a supplier and time it
+     * <p>
+     * The result is wrapped in a new {@link Value} for every call. To time
+     * without the wrapper, when the supplier throws one type of checked
+     * exception, use {@link #timedThrowing(java.lang.String, dk.dbc.commons.stopwatch.StopWatch.ThrowingSupplier)}
      *
      * @param <T>      type of return value
      * @param name     {@link MDC} name of timing information
@@ -199,13 +1005,25 @@ public class StopWatch {
      */
     @CheckReturnValue
     public <T> Value<T> timedWithExceptions(String name, SupplierWithCheckedExceptions<T> supplier) {
-        try (Clock timer = time(name)) {
-            return new ValueWithValue<>(supplier.get());
-        } catch (RuntimeException ex) {
-            throw ex;
-        } catch (Exception ex) {
-            return new ValueWithCheckedExceptionThrown<>(ex);
-        }
+        return timedWithExceptionsBy(entry(name), supplier);
+    }
+
+    /**
+     * Call a supplier and time it
+     * <p>
+     * The result is wrapped in a new {@link Value} for every call. To time
+     * without the wrapper, when the supplier throws one type of checked
+     * exception, use {@link #timedThrowing(dk.dbc.commons.stopwatch.StopWatch.Key, dk.dbc.commons.stopwatch.StopWatch.ThrowingSupplier)}
+     *
+     * @param <T>      type of return value
+     * @param key      timer from {@link #key(java.lang.String)}
+     * @param supplier method that produces a value
+     * @return the result of {@link Supplier#get()} wrapped in a
+     *         {@link Value}
+     */
+    @CheckReturnValue
+    public <T> Value<T> timedWithExceptions(Key key, SupplierWithCheckedExceptions<T> supplier) {
+        return timedWithExceptionsBy(entry(key), supplier);
     }
 
     /**
@@ -220,9 +1038,35 @@ public class StopWatch {
      */
     @CheckReturnValue
     public Value<Void> timedWithExceptions(String name, VoidBlockWithCheckedExceptions block) {
-        try (Clock timer = time(name)) {
-            block.perform();
-            return new ValueWithValue<>(null);
+        return timedWithExceptionsBy(entry(name), block);
+    }
+
+    /**
+     * Call a code segment and time it
+     *
+     * Remember to check for exceptions
+     *
+     * @param key   timer from {@link #key(java.lang.String)}
+     * @param block code segment to time
+     * @return the result of {@link Supplier#get()} wrapped in a
+     *         {@link Value}
+     */
+    @CheckReturnValue
+    public Value<Void> timedWithExceptions(Key key, VoidBlockWithCheckedExceptions block) {
+        return timedWithExceptionsBy(entry(key), block);
+    }
+
+    private <T> T timedBy(TimerEntry entry, Supplier<T> supplier) {
+        return timedThrowingBy(entry, supplier::get);
+    }
+
+    private void timedBy(TimerEntry entry, VoidBlock block) {
+        timedThrowingBy(entry, block::perform);
+    }
+
+    private <T> Value<T> timedWithExceptionsBy(TimerEntry entry, SupplierWithCheckedExceptions<T> supplier) {
+        try {
+            return new ValueWithValue<>(timedThrowingBy(entry, supplier::get));
         } catch (RuntimeException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -230,6 +1074,122 @@ public class StopWatch {
         }
     }
 
+    private Value<Void> timedWithExceptionsBy(TimerEntry entry, VoidBlockWithCheckedExceptions block) {
+        try {
+            timedThrowingBy(entry, block::perform);
+            return VOID_VALUE;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            return new ValueWithCheckedExceptionThrown<>(ex);
+        }
+    }
+
+    private <T, E extends Exception> T timedThrowingBy(TimerEntry entry, ThrowingSupplier<T, E> supplier) throws E {
+        long nano = System.nanoTime();
+        NestedClock nested = begin(entry, nano);
+        try {
+            return supplier.get();
+        } finally {
+            end(entry, nano, nested);
+        }
+    }
+
+    private <E extends Exception> void timedThrowingBy(TimerEntry entry, ThrowingBlock<E> block) throws E {
+        long nano = System.nanoTime();
+        NestedClock nested = begin(entry, nano);
+        try {
+            block.perform();
+        } finally {
+            end(entry, nano, nested);
+        }
+    }
+
+    /**
+     * Start a timing, on the thread's stack of timers if nesting is tracked
+     *
+     * @param entry   timer
+     * @param started {@link System#nanoTime()} when the timing started
+     * @return the running clock if nesting is tracked, otherwise null
+     */
+    private NestedClock begin(TimerEntry entry, long started) {
+        if (NESTED)
+            return new NestedClock(this, timers, entry, PATHS).start(started);
+        return null;
+    }
+
+    /**
+     * End a timing from {@link #begin(dk.dbc.commons.stopwatch.TimerEntry, long)}
+     *
+     * @param entry   timer
+     * @param started {@link System#nanoTime()} when the timing started
+     * @param nested  the clock from begin()
+     */
+    private void end(TimerEntry entry, long started, NestedClock nested) {
+        if (nested != null)
+            nested.close();
+        else
+            stopped(entry, started);
+    }
+
+    /**
+     * Call a supplier and time it, passing on its exception
+     * <p>
+     * Unlike {@link #timedWithExceptions(java.lang.String, dk.dbc.commons.stopwatch.StopWatch.SupplierWithCheckedExceptions)}
+     * nothing is wrapped
+     *
+     * @param <T>      type of return value
+     * @param <E>      type of exception
+     * @param name     {@link MDC} name of timing information
+     * @param supplier method that produces a value
+     * @return the result of {@link ThrowingSupplier#get()}
+     * @throws E if the supplier throws it
+     */
+    public <T, E extends Exception> T timedThrowing(String name, ThrowingSupplier<T, E> supplier) throws E {
+        return timedThrowingBy(entry(name), supplier);
+    }
+
+    /**
+     * Call a supplier and time it, passing on its exception
+     *
+     * @param <T>      type of return value
+     * @param <E>      type of exception
+     * @param key      timer from {@link #key(java.lang.String)}
+     * @param supplier method that produces a value
+     * @return the result of {@link ThrowingSupplier#get()}
+     * @throws E if the supplier throws it
+     */
+    public <T, E extends Exception> T timedThrowing(Key key, ThrowingSupplier<T, E> supplier) throws E {
+        return timedThrowingBy(entry(key), supplier);
+    }
+
+    /**
+     * Call a code segment and time it, passing on its exception
+     *
+     * @param <E>   type of exception
+     * @param name  {@link MDC} name of timing information
+     * @param block code segment to time
+     * @throws E if the block throws it
+     */
+    public <E extends Exception> void timedThrowing(String name, ThrowingBlock<E> block) throws E {
+        timedThrowingBy(entry(name), block);
+    }
+
+    /**
+     * Call a code segment and time it, passing on its exception
+     *
+     * @param <E>   type of exception
+     * @param key   timer from {@link #key(java.lang.String)}
+     * @param block code segment to time
+     * @throws E if the block throws it
+     */
+    public <E extends Exception> void timedThrowing(Key key, ThrowingBlock<E> block) throws E {
+        timedThrowingBy(entry(key), block);
+    }
+
+    // Successful void blocks all have the same value
+    private static final Value<Void> VOID_VALUE = new ValueWithValue<>(null);
+
     private static class ValueWithValue<T> implements Value<T> {
 
         private final T obj;
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.MDC;
+
+/**
+ * An {@link ExecutorService} that runs tasks in the context of the request
+ * that submitted them
+ * <p>
+ * The submitting thread's {@link StopWatch#current()} and {@link MDC} are set
+ * while the task runs. The time a task waits in the queue is timed as
+ * {@code <name>_queue}, and the time it runs as {@code <name>_run}. The
+ * TIMING line of the request is not logged until its tasks have completed.
+ * <p>
+ * Ex. {@code new StopWatchExecutorService(managedExecutorService, "backend")}
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class StopWatchExecutorService extends AbstractExecutorService {
+
+    private final ExecutorService executor;
+    private final StopWatch.Key queued;
+    private final StopWatch.Key running;
+
+    /**
+     * Wrap an executor service
+     *
+     * @param executor the executor that runs the tasks
+     * @param name     the prefix of the timer names
+     */
+    public StopWatchExecutorService(ExecutorService executor, String name) {
+        this.executor = executor;
+        this.queued = StopWatch.key(name + "_queue");
+        this.running = StopWatch.key(name + "_run");
+    }
+
+    /**
+     * Wrap an executor
+     *
+     * @param executor the executor that runs the tasks
+     * @param name     the prefix of the timer names
+     * @return executor that propagates the request context
+     */
+    public static Executor wrap(Executor executor, String name) {
+        StopWatch.Key queued = StopWatch.key(name + "_queue");
+        StopWatch.Key running = StopWatch.key(name + "_run");
+        return task -> execute(executor, new Propagated(task, queued, running));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(executor, new Propagated(task, queued, running));
+    }
+
+    private static void execute(Executor executor, Propagated task) {
+        try {
+            executor.execute(task);
+        } catch (RuntimeException ex) {
+            task.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = executor.shutdownNow();
+        for (Runnable task : tasks) {
+            if (task instanceof Propagated)
+                ( (Propagated) task ).release();
+        }
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * A task with the context of the thread that created it
+     */
+    private static final class Propagated implements Runnable {
+
+        private final Runnable task;
+        private final StopWatch.Key queued;
+        private final StopWatch.Key running;
+        private final StopWatch stopWatch;
+        private final Map<String, String> mdc;
+        private final long submitted;
+        private final AtomicBoolean outstanding;
+
+        private Propagated(Runnable task, StopWatch.Key queued, StopWatch.Key running) {
+            this.task = task;
+            this.queued = queued;
+            this.running = running;
+            this.stopWatch = StopWatch.current();
+            this.mdc = MDC.getCopyOfContextMap();
+            this.submitted = System.nanoTime();
+            this.outstanding = new AtomicBoolean(stopWatch != null && stopWatch.track());
+        }
+
+        @Override
+        public void run() {
+            long started = System.nanoTime();
+            if (stopWatch != null)
+                stopWatch.add(queued, submitted, started - submitted);
+            Map<String, String> oldMdc = MDC.getCopyOfContextMap();
+            StopWatch oldStopWatch = StopWatch.bind(stopWatch);
+            setMdc(mdc);
+            try {
+                task.run();
+            } finally {
+                if (stopWatch != null)
+                    stopWatch.add(running, started, System.nanoTime() - started);
+                setMdc(oldMdc);
+                StopWatch.bind(oldStopWatch);
+                release();
+            }
+        }
+
+        /**
+         * Tell the StopWatch that this task is done (or will never run)
+         */
+        private void release() {
+            if (outstanding.getAndSet(false))
+                stopWatch.release();
+        }
+
+        private static void setMdc(Map<String, String> mdc) {
+            if (mdc == null)
+                MDC.clear();
+            else
+                MDC.setContextMap(mdc);
+        }
+    }
+}
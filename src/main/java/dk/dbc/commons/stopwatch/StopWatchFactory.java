@@ -18,6 +18,9 @@
  */
 package dk.dbc.commons.stopwatch;
 
+import java.lang.reflect.Method;
+import jakarta.ws.rs.container.ResourceInfo;
+import jakarta.ws.rs.core.Context;
 import org.glassfish.hk2.api.Factory;
 
 /**
@@ -27,13 +30,41 @@ import org.glassfish.hk2.api.Factory;
  */
 public class StopWatchFactory implements Factory<StopWatch> {
 
+    @Context
+    ResourceInfo resourceInfo;
+
+    // The binding to the request thread, undone by StopWatchRequestListener
+    private StopWatch.RequestBinding binding;
+
     @Override
     public StopWatch provide() {
-        return new StopWatch();
+        StopWatch stopWatch = new StopWatch();
+        if (StopWatchStatistics.isEnabled())
+            stopWatch.setEndpoint(endpoint());
+        binding = StopWatch.bindRequest(stopWatch);
+        return stopWatch;
+    }
+
+    /**
+     * The name of the resource method of the request
+     *
+     * @return fully.qualified.Class.method or null if unknown
+     */
+    private String endpoint() {
+        try {
+            Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+            if (method == null)
+                return null;
+            return method.getDeclaringClass().getCanonicalName() + "." + method.getName();
+        } catch (RuntimeException ex) {
+            return null;
+        }
     }
 
     @Override
     public void dispose(StopWatch t) {
+        if (binding != null)
+            binding.unbind();
         t.dispose();
     }
 }
@@ -25,7 +25,8 @@ import org.glassfish.jersey.process.internal.RequestScoped;
 
 /**
  * Jersey feature (auto enabled by {@link StopWatchAutoDiscover}) that
- * provides @Context @{link StopWatch}
+ * provides @Context @{link StopWatch}, and unbinds it from the request thread
+ * when the resource method returns
  *
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
@@ -40,6 +41,7 @@ public class StopWatchFeature implements Feature {
                         .to(StopWatch.class).in(RequestScoped.class);
             }
         });
+        context.register(new StopWatchRequestListener());
         return true;
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.RequestScoped;
+import jakarta.enterprise.inject.Produces;
+
+/**
+ * CDI producer of {@link StopWatch} objects, one per request scope
+ * <p>
+ * This makes {@code @Inject StopWatch stopWatch;} work where the CDI request
+ * context is active, but Jersey isn't involved, ex. EJB timers and message
+ * driven beans. The TIMING line is logged when the request context ends.
+ * <p>
+ * If a StopWatch is already bound to the thread (ex. provided by Jersey, or
+ * from a {@link StopWatch#scope()}), that is used, and left for its owner to
+ * log.
+ * <p>
+ * A created StopWatch is unbound from the thread when the request context
+ * ends on it, or, in a Jersey request, when the resource method returns (by
+ * {@link StopWatchRequestListener}), so a thread that is reused while the
+ * request is still running doesn't time into it.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+@RequestScoped
+public class StopWatchProducer {
+
+    // The StopWatch created by this, null if none or the thread already had one
+    private StopWatch created;
+    private StopWatch.RequestBinding binding;
+
+    /**
+     * The StopWatch of the request
+     *
+     * @return the thread's StopWatch, or a new one bound to the thread
+     */
+    @Produces
+    @RequestScoped
+    public StopWatch stopWatch() {
+        StopWatch current = StopWatch.current();
+        if (current != null)
+            return current;
+        created = new StopWatch();
+        binding = StopWatch.bindRequest(created);
+        return created;
+    }
+
+    /**
+     * Log the TIMING line of the StopWatch, if it was created by this
+     */
+    @PreDestroy
+    public void dispose() {
+        if (created != null) {
+            binding.unbind();
+            created.dispose();
+            created = null;
+        }
+    }
+}
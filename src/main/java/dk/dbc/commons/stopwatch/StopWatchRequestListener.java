@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Jersey listener (registered by {@link StopWatchFeature}) that unbinds the
+ * request's {@link StopWatch} from the request thread
+ * <p>
+ * The StopWatch is unbound when the resource method returns, so the thread
+ * doesn't time the next request into it, while this request is suspended or
+ * has asynchronous work outstanding. If the StopWatch is provided after that
+ * (ex. to a response filter) it is unbound when the request finishes on the
+ * same thread.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class StopWatchRequestListener implements ApplicationEventListener {
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        Thread thread = Thread.currentThread();
+        return event -> {
+            switch (event.getType()) {
+                case RESOURCE_METHOD_FINISHED:
+                    StopWatch.unbindRequest();
+                    break;
+                case FINISHED:
+                    if (Thread.currentThread() == thread)
+                        StopWatch.unbindRequest();
+                    break;
+                default:
+                    break;
+            }
+        };
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import dk.dbc.commons.shared.BackgroundTasks;
+import dk.dbc.commons.shared.Durations;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import dk.dbc.commons.statistics.LatencySnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Distribution of the timers across requests, per endpoint
+ * <p>
+ * When enabled by the environment variable {@code STOPWATCH_STATISTICS}
+ * ("on", or a duration for also logging the distributions periodically),
+ * every disposed {@link StopWatch} adds its timers (and "total") to
+ * histograms per (endpoint, timer name). The endpoint is the resource method
+ * ({@code fully.qualified.Class.method}) for Jersey requests.
+ * <p>
+ * All durations are in nanoseconds, and accurate to within 12.5%. The
+ * histograms are cumulative since startup.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public final class StopWatchStatistics {
+
+    private static final Logger log = LoggerFactory.getLogger(StopWatchStatistics.class);
+
+    static final String ENV = "STOPWATCH_STATISTICS";
+    static final String UNKNOWN_ENDPOINT = "unknown";
+    private static final int STRIPES = 4;
+
+    // -1 is off, 0 is on and > 0 is also logged with this period
+    private static final long PERIOD_IN_NS = period(System.getenv(ENV));
+    private static final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> ENDPOINTS = new ConcurrentHashMap<>();
+
+    static {
+        if (PERIOD_IN_NS > 0)
+            BackgroundTasks.every(PERIOD_IN_NS, StopWatchStatistics::logAll);
+    }
+
+    private StopWatchStatistics() {
+    }
+
+    /**
+     * If disposed timers are collected
+     *
+     * @return if {@code STOPWATCH_STATISTICS} enables it
+     */
+    public static boolean isEnabled() {
+        return PERIOD_IN_NS >= 0;
+    }
+
+    /**
+     * The distributions for all endpoints
+     *
+     * @return map of endpoint to (map of timer name to snapshot), sorted by
+     *         name
+     */
+    public static Map<String, Map<String, LatencySnapshot>> snapshot() {
+        TreeMap<String, Map<String, LatencySnapshot>> snapshots = new TreeMap<>();
+        ENDPOINTS.forEach((endpoint, timers) -> snapshots.put(endpoint, snapshot(timers)));
+        return snapshots;
+    }
+
+    /**
+     * The distributions for a single endpoint
+     *
+     * @param endpoint name of the endpoint
+     * @return map of timer name to snapshot, sorted by name, or null if the
+     *         endpoint is unknown
+     */
+    public static Map<String, LatencySnapshot> snapshot(String endpoint) {
+        ConcurrentMap<String, LatencyHistogram> timers = ENDPOINTS.get(endpoint);
+        if (timers == null)
+            return null;
+        return snapshot(timers);
+    }
+
+    private static Map<String, LatencySnapshot> snapshot(ConcurrentMap<String, LatencyHistogram> timers) {
+        TreeMap<String, LatencySnapshot> snapshots = new TreeMap<>();
+        timers.forEach((name, histogram) -> snapshots.put(name, histogram.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * Add a disposed stopwatch
+     *
+     * @param endpoint  the endpoint, or null if unknown
+     * @param stopWatch the timers
+     * @param totalNs   the duration of the request
+     */
+    static void record(String endpoint, StopWatch stopWatch, long totalNs) {
+        ConcurrentMap<String, LatencyHistogram> timers = ENDPOINTS.computeIfAbsent(
+                endpoint == null ? UNKNOWN_ENDPOINT : endpoint, e -> new ConcurrentHashMap<>());
+        stopWatch.forEachTimer((name, ns, count) -> histogram(timers, name).record(ns, false));
+        histogram(timers, "total").record(totalNs, false);
+    }
+
+    private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> timers, String name) {
+        LatencyHistogram histogram = timers.get(name);
+        if (histogram == null)
+            histogram = timers.computeIfAbsent(name, n -> new LatencyHistogram(STRIPES));
+        return histogram;
+    }
+
+    private static void logAll() {
+        snapshot().forEach((endpoint, timers) -> log.info("Timing statistics for {}: {}", endpoint, timers));
+    }
+
+    /**
+     * Parse the environment variable
+     *
+     * @param env the value
+     * @return -1 for off, 0 for on, or the period of logging in ns
+     */
+    static long period(String env) {
+        if (env == null)
+            return -1;
+        String value = env.trim().toLowerCase(Locale.ROOT);
+        switch (value) {
+            case "":
+            case "off":
+                return -1;
+            case "on":
+                return 0;
+            default:
+                try {
+                    long period = Durations.inNs(value);
+                    if (period > 0)
+                        return period;
+                } catch (IllegalArgumentException ex) {
+                    log.debug("Cannot parse: {}", env, ex);
+                }
+                log.warn("Unknown value: {} in ${}, statistics are on, but not logged", env, ENV);
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import dk.dbc.commons.shared.BackgroundTasks;
+import dk.dbc.commons.shared.Durations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The timings of a request, in the order they were made
+ * <p>
+ * Each timing is stored as start offset, duration and thread id in a
+ * preallocated array, so recording doesn't allocate. When the array is full,
+ * timings are counted as dropped. Requests above the (required) threshold are
+ * written as Chrome trace-event JSON, that can be opened in a flame-chart
+ * viewer (ex. chrome://tracing or Perfetto). The files are written by
+ * {@link BackgroundTasks}, not by the thread that ends the request.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class Timeline {
+
+    private static final Logger log = LoggerFactory.getLogger(Timeline.class);
+
+    // Environment variable with the directory to write timelines to
+    static final String ENV = "STOPWATCH_TIMELINE";
+    static final String THRESHOLD_ENV = "STOPWATCH_TIMELINE_THRESHOLD";
+    static final String SIZE_ENV = "STOPWATCH_TIMELINE_SIZE";
+    private static final int DEFAULT_SIZE = 1024;
+    // Timelines waiting to be written, more are dropped
+    private static final int MAX_PENDING = 16;
+
+    private static final long THRESHOLD_IN_NS = threshold(System.getenv(THRESHOLD_ENV));
+    private static final Path DIRECTORY = enabled(directory(System.getenv(ENV)), THRESHOLD_IN_NS);
+    private static final int SIZE = size(System.getenv(SIZE_ENV));
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    private final String[] names;
+    // start offset, duration, thread id for each timing
+    private final long[] events;
+    private final AtomicInteger next;
+    private final long threadId;
+
+    Timeline(int size) {
+        this.names = new String[size];
+        this.events = new long[size * 3];
+        this.next = new AtomicInteger();
+        this.threadId = Thread.currentThread().getId();
+    }
+
+    /**
+     * A timeline for a new request, if timelines are enabled
+     *
+     * @return timeline or null
+     */
+    static Timeline forRequest() {
+        return DIRECTORY == null ? null : new Timeline(SIZE);
+    }
+
+    /**
+     * Record a timing, made by the current thread
+     *
+     * @param name     name of the timer
+     * @param offset   start relative to the start of the request
+     * @param duration duration in ns
+     */
+    void add(String name, long offset, long duration) {
+        int index = next.getAndIncrement();
+        if (index >= names.length)
+            return;
+        int pos = index * 3;
+        events[pos] = offset;
+        events[pos + 1] = duration;
+        events[pos + 2] = Thread.currentThread().getId();
+        names[index] = name;
+    }
+
+    /**
+     * Number of timings that didn't fit
+     *
+     * @return count
+     */
+    int dropped() {
+        return Math.max(0, next.get() - names.length);
+    }
+
+    /**
+     * Queue the timeline for writing to the configured directory, if the
+     * request is slow
+     * <p>
+     * If {@link #MAX_PENDING} timelines are waiting to be written, the
+     * timeline is dropped
+     *
+     * @param totalNs  duration of the request
+     * @param mdc      values of the request, included as metadata
+     * @param endpoint name of the request, or null
+     */
+    void emit(long totalNs, Map<String, String> mdc, String endpoint) {
+        if (totalNs < THRESHOLD_IN_NS)
+            return;
+        if (PENDING.incrementAndGet() > MAX_PENDING) {
+            PENDING.decrementAndGet();
+            log.debug("Dropped timeline, {} are waiting to be written", MAX_PENDING);
+            return;
+        }
+        Map<String, String> values = Map.copyOf(mdc);
+        Path file = DIRECTORY.resolve("stopwatch-" + System.currentTimeMillis() + "-" + SEQUENCE.incrementAndGet() + ".json");
+        BackgroundTasks.submit(() -> {
+            try {
+                write(file, totalNs, values, endpoint);
+            } finally {
+                PENDING.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Write the timeline to a file
+     * <p>
+     * Failure to write is logged, not thrown
+     *
+     * @param file     the file
+     * @param totalNs  duration of the request
+     * @param mdc      values of the request, included as metadata
+     * @param endpoint name of the request, or null
+     */
+    private void write(Path file, long totalNs, Map<String, String> mdc, String endpoint) {
+        try {
+            Files.createDirectories(DIRECTORY);
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writeTo(writer, totalNs, mdc, endpoint);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Cannot write timeline to: {}: {}", file, ex.getMessage());
+            log.debug("Cannot write timeline to: {}: ", file, ex);
+        }
+    }
+
+    /**
+     * Render the timeline as Chrome trace-event JSON
+     * <p>
+     * Every timing is a complete ("X") event in microseconds, and the request
+     * itself is an event named total
+     *
+     * @param writer   where to write
+     * @param totalNs  duration of the request
+     * @param mdc      values of the request, included as metadata
+     * @param endpoint name of the request, or null
+     * @throws IOException if the writer fails
+     */
+    void writeTo(Writer writer, long totalNs, Map<String, String> mdc, String endpoint) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        writeEvent(writer, "total", 0, totalNs, threadId);
+        int size = Math.min(next.get(), names.length);
+        for (int i = 0 ; i < size ; i++) {
+            // Not yet written by a thread that hasn't completed the timing
+            if (names[i] == null)
+                continue;
+            int pos = i * 3;
+            writer.write(',');
+            writeEvent(writer, names[i], events[pos], events[pos + 1], events[pos + 2]);
+        }
+        writer.write("],\"otherData\":{");
+        writer.write("\"dropped\":\"" + dropped() + "\"");
+        if (endpoint != null) {
+            writer.write(",\"endpoint\":");
+            writeString(writer, endpoint);
+        }
+        for (Map.Entry<String, String> entry : mdc.entrySet()) {
+            writer.write(',');
+            writeString(writer, entry.getKey());
+            writer.write(':');
+            writeString(writer, entry.getValue());
+        }
+        writer.write("}}");
+    }
+
+    private static void writeEvent(Writer writer, String name, long offset, long duration, long threadId) throws IOException {
+        writer.write("{\"name\":");
+        writeString(writer, name);
+        writer.write(",\"cat\":\"stopwatch\",\"ph\":\"X\",\"pid\":1,\"tid\":" + threadId +
+                     ",\"ts\":" + ( offset / 1_000.0 ) +
+                     ",\"dur\":" + ( duration / 1_000.0 ) + "}");
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    writer.write('\\');
+                    writer.write(c);
+                    break;
+                default:
+                    if (c < 0x20)
+                        writer.write(String.format("\\u%04x", (int) c));
+                    else
+                        writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Parse the directory environment variable
+     *
+     * @param env value of {@link #ENV}
+     * @return directory or null if timelines are off
+     */
+    static Path directory(String env) {
+        if (env == null || env.isBlank() || env.trim().equalsIgnoreCase("off"))
+            return null;
+        try {
+            return Paths.get(env.trim());
+        } catch (RuntimeException ex) {
+            log.warn("Unknown directory: {} in ${}, timelines are off", env, ENV);
+            return null;
+        }
+    }
+
+    /**
+     * Parse the threshold environment variable
+     *
+     * @param env value of {@link #THRESHOLD_ENV}
+     * @return threshold in ns, 0 if it is unset or invalid
+     */
+    static long threshold(String env) {
+        if (env == null || env.isBlank())
+            return 0;
+        try {
+            return Durations.inNs(env.trim());
+        } catch (IllegalArgumentException ex) {
+            log.warn("Unknown duration: {} in ${}", env, THRESHOLD_ENV);
+            return 0;
+        }
+    }
+
+    /**
+     * Decide if timelines are written
+     * <p>
+     * Writing every request would flood the directory, so a threshold is
+     * required
+     *
+     * @param directory     the directory from {@link #ENV}, or null
+     * @param thresholdInNs the threshold from {@link #THRESHOLD_ENV}
+     * @return the directory, or null if timelines are off
+     */
+    static Path enabled(Path directory, long thresholdInNs) {
+        if (directory == null)
+            return null;
+        if (thresholdInNs <= 0) {
+            log.warn("${} is set, but ${} isn't a positive duration, timelines are off", ENV, THRESHOLD_ENV);
+            return null;
+        }
+        return directory;
+    }
+
+    /**
+     * Parse the size environment variable
+     *
+     * @param env value of {@link #SIZE_ENV}
+     * @return max number of timings in a timeline
+     */
+    static int size(String env) {
+        if (env == null || env.isBlank())
+            return DEFAULT_SIZE;
+        try {
+            int size = Integer.parseInt(env.trim());
+            if (size > 0)
+                return size;
+        } catch (NumberFormatException ex) {
+            log.debug("Cannot parse: {}", env, ex);
+        }
+        log.warn("Unknown size: {} in ${}, using {}", env, SIZE_ENV, DEFAULT_SIZE);
+        return DEFAULT_SIZE;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulated time of a timer
+ * <p>
+ * The counters are striped ({@link LongAdder}), so threads timing under the
+ * same name don't contend. The sums are exact once the timing is done.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class TimerEntry {
+
+    final String name;
+    final LongAdder ns;
+    final LongAdder count;
+    // Time not spent in nested timers, only when nesting is tracked
+    final LongAdder selfNs;
+    // Path qualified timers (name.child) by the child's unqualified timer,
+    // only made when paths are tracked, and the timer has a child
+    private volatile ConcurrentMap<TimerEntry, TimerEntry> children;
+
+    TimerEntry(String name) {
+        this.name = name;
+        this.ns = new LongAdder();
+        this.count = new LongAdder();
+        this.selfNs = new LongAdder();
+        this.children = null;
+    }
+
+    void add(long ns) {
+        this.ns.add(ns);
+        this.count.increment();
+    }
+
+    /**
+     * The timer for a child, with a path qualified name
+     *
+     * @param child  the timer that is nested in this
+     * @param timers where to register new timers
+     * @return timer named: this.child
+     */
+    TimerEntry child(TimerEntry child, ConcurrentMap<String, TimerEntry> timers) {
+        ConcurrentMap<TimerEntry, TimerEntry> map = children;
+        if (map == null)
+            map = children();
+        TimerEntry entry = map.get(child);
+        if (entry == null)
+            entry = map.computeIfAbsent(child, c -> timers.computeIfAbsent(name + "." + c.name, TimerEntry::new));
+        return entry;
+    }
+
+    private synchronized ConcurrentMap<TimerEntry, TimerEntry> children() {
+        if (children == null)
+            children = new ConcurrentHashMap<>();
+        return children;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import dk.dbc.commons.statistics.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+import org.slf4j.event.Level;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class AdaptiveThresholdTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void testParse() throws Exception {
+        System.out.println("testParse");
+        assertThat(AdaptiveThreshold.isAdaptive("p99"), is(true));
+        assertThat(AdaptiveThreshold.isAdaptive("adaptive:p99.5:1ms:2s"), is(true));
+        assertThat(AdaptiveThreshold.isAdaptive("20ms"), is(false));
+        assertThat(AdaptiveThreshold.isAdaptive("always"), is(false));
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveThreshold.parse("p100", 1.0, new LatencyHistogram()));
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveThreshold.parse("p99:2s:1ms", 1.0, new LatencyHistogram()));
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveThreshold.parse("p99:2parsecs", 1.0, new LatencyHistogram()));
+    }
+
+    @Test
+    public void testFollowsPercentile() throws Exception {
+        System.out.println("testFollowsPercentile");
+        LatencyHistogram histogram = new LatencyHistogram();
+        SlowCallConfig threshold = SlowCallConfig.of("m()", "X", 1.0, histogram, "p90:1ms:1s", Level.ERROR);
+        AdaptiveThreshold adaptive = threshold.state().adaptive();
+        adaptive.stop(); // Run manually
+        assertThat(threshold.thresholdInNs(), is(1_000 * MS));
+
+        // Too few calls to move it
+        histogram.record(10 * MS, false);
+        adaptive.run();
+        assertThat(threshold.thresholdInNs(), is(1_000 * MS));
+
+        for (int i = 1 ; i <= 100 ; i++) {
+            histogram.record(i * MS, false);
+        }
+        adaptive.run();
+        assertThat((double) threshold.thresholdInNs(), closeTo(90.0 * MS, 12.0 * MS));
+
+        // Bounded by the floor
+        for (int i = 0 ; i < 100_000 ; i++) {
+            histogram.record(1_000, false);
+        }
+        adaptive.run();
+        assertThat(threshold.thresholdInNs(), is(MS));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.ArrayList;
+import java.util.List;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.event.Level;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class AsyncEmitterTest {
+
+    private static final LogTemplate TEMPLATE = new LogTemplate("a.B", "c", new int[] {0}, false, NanoUnit.of("ms"));
+
+    private final Logger slowCallLogger = (Logger) LoggerFactory.getLogger(SlowCallLog.class);
+    private final Logger emitterLogger = (Logger) LoggerFactory.getLogger(AsyncEmitter.class);
+    private ListAppender<ILoggingEvent> lines;
+    private ListAppender<ILoggingEvent> warnings;
+    private SlowCallOutput output;
+
+    @BeforeEach
+    public void setUp() {
+        lines = new ListAppender<>();
+        lines.start();
+        slowCallLogger.addAppender(lines);
+        warnings = new ListAppender<>();
+        warnings.start();
+        emitterLogger.addAppender(warnings);
+        SlowCallConfig config = SlowCallConfig.of("a.B.c()", "X", 1.0, new LatencyHistogram(), "always", Level.ERROR);
+        output = new SlowCallOutput("a.B", "c", config, SlowCallLog.MdcMode.COPY);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        slowCallLogger.detachAppender(lines);
+        emitterLogger.detachAppender(warnings);
+        MDC.clear();
+    }
+
+    @Test
+    public void testManyProducers() throws Exception {
+        System.out.println("testManyProducers");
+        AsyncEmitter emitter = new AsyncEmitter(16, true, new String[] {"trackingId"});
+        emitter.start();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0 ; t < 4 ; t++) {
+            String trackingId = "t" + t;
+            threads.add(new Thread(() -> {
+                MDC.put("trackingId", trackingId);
+                for (int i = 0 ; i < 500 ; i++) {
+                    emitter.emit(output, 1_000_000L, TEMPLATE, new Object[] {i}, null);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        emitter.stop();
+        awaitLines(2000);
+        assertThat(emitter.dropped(), is(0L));
+        assertThat(lines.list.stream()
+                .filter(e -> "t3".equals(e.getMDCPropertyMap().get("trackingId")))
+                .count(), is(500L));
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        System.out.println("testDropWhenFull");
+        AsyncEmitter emitter = new AsyncEmitter(4, false, new String[] {});
+        for (int i = 0 ; i < 6 ; i++) {
+            emitter.emit(output, 1_000_000L, TEMPLATE, new Object[] {i}, null);
+        }
+        assertThat(emitter.dropped(), is(2L));
+        emitter.start();
+        emitter.stop();
+        awaitLines(4);
+        assertThat(lines.list.get(0).getFormattedMessage(), is("a.B.c([0]) (1ms)"));
+        awaitWarning();
+        assertThat(warnings.list.get(0).getFormattedMessage(), is("Dropped 2 slow-call log lines, the async queue is full"));
+    }
+
+    @Test
+    public void testSynchronousAfterShutdown() throws Exception {
+        System.out.println("testSynchronousAfterShutdown");
+        AsyncEmitter emitter = new AsyncEmitter(4, false, new String[] {"trackingId"});
+        emitter.start();
+        emitter.stop();
+        MDC.put("trackingId", "mine");
+        emitter.emit(output, 1_000_000L, TEMPLATE, new Object[] {"late"}, null);
+        assertThat(lines.list.size(), is(1));
+        assertThat(lines.list.get(0).getThreadName(), is(Thread.currentThread().getName()));
+        assertThat(lines.list.get(0).getMDCPropertyMap().get("trackingId"), is("mine"));
+        assertThat(emitter.dropped(), is(0L));
+    }
+
+    private void awaitLines(int count) throws InterruptedException {
+        for (int i = 0 ; i < 500 && lines.list.size() < count ; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(lines.list.size(), is(count));
+    }
+
+    private void awaitWarning() throws InterruptedException {
+        for (int i = 0 ; i < 500 && warnings.list.isEmpty() ; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class CallTreeTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void testTree() throws Exception {
+        System.out.println("testTree");
+        CallTree tree = new CallTree();
+        CallTree.Site root = site("a.B.root", true);
+        CallTree.Site sub = site("a.B.sub", false);
+
+        int r = tree.enter(root, 0);
+        int s1 = tree.enter(sub, 1 * MS);
+        int s2 = tree.enter(sub, 2 * MS);
+        tree.exit(s2, 3 * MS, Long.MAX_VALUE);
+        tree.exit(s1, 5 * MS, Long.MAX_VALUE);
+        int s3 = tree.enter(sub, 7 * MS);
+        tree.exit(s3, 2 * MS, Long.MAX_VALUE);
+        tree.exit(r, 10 * MS, Long.MAX_VALUE);
+
+        assertThat(tree.render(), is("Call tree: a.B.root 10ms (self 3ms) {" +
+                                     " +1ms a.B.sub 5ms (self 2ms) { +2ms a.B.sub 3ms (self 3ms) }," +
+                                     " +7ms a.B.sub 2ms (self 2ms) }"));
+    }
+
+    @Test
+    public void testNotRoot() throws Exception {
+        System.out.println("testNotRoot");
+        CallTree tree = new CallTree();
+        CallTree.Site sub = site("a.B.sub", false);
+        int s = tree.enter(sub, 0);
+        assertThat(s, is(CallTree.UNTRACKED));
+        tree.exit(s, MS, 0);
+
+        // A new root after an untracked call starts at the top
+        int r = tree.enter(site("a.B.root", true), 0);
+        assertThat(r, is(0));
+        tree.exit(r, MS, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        System.out.println("testTruncated");
+        CallTree tree = new CallTree();
+        CallTree.Site root = site("a.B.root", true);
+        CallTree.Site sub = site("a.B.sub", false);
+        int r = tree.enter(root, 0);
+        for (int i = 0 ; i < CallTree.MAX_CALLS + 2 ; i++) {
+            tree.exit(tree.enter(sub, 0), 0, Long.MAX_VALUE);
+        }
+        tree.exit(r, MS, Long.MAX_VALUE);
+        assertThat(tree.render(), endsWith(" (3 calls not recorded)"));
+    }
+
+    @Test
+    public void testRateLimited() throws Exception {
+        System.out.println("testRateLimited");
+        Logger logger = (Logger) LoggerFactory.getLogger(SlowCallLog.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            RateLimiter limiter = new RateLimiter(1.0, 1.0, System.nanoTime());
+            CallTree tree = new CallTree();
+            CallTree.Site root = new CallTree.Site("a.B.root", true, SlowCallLogInterceptor.treePrinter(output("a.B.root"), null, limiter), NanoUnit.of("ms"));
+            CallTree.Site sub = site("a.B.sub", false);
+            for (int i = 0 ; i < 5 ; i++) {
+                int r = tree.enter(root, 0);
+                tree.exit(tree.enter(sub, MS), MS, Long.MAX_VALUE);
+                tree.exit(r, 2 * MS, 0);
+            }
+            assertThat(appender.list.size(), is(1));
+            assertThat(appender.list.get(0).getFormattedMessage(), startsWith("Call tree: a.B.root 2ms"));
+            assertThat(limiter.takeSuppressed(), is(4L));
+        } finally {
+            logger.detachAppender(appender);
+        }
+    }
+
+    private static CallTree.Site site(String name, boolean root) {
+        return new CallTree.Site(name, root, output(name)::log, NanoUnit.of("ms"));
+    }
+
+    private static SlowCallOutput output(String name) {
+        SlowCallConfig config = SlowCallConfig.of(name, "X", 1.0, new LatencyHistogram(), "always", Level.ERROR);
+        return new SlowCallOutput("a.B", name, config, SlowCallLog.MdcMode.COPY);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import dk.dbc.commons.slowcalllog.SlowCallLogInterceptor.Invoker;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class InvokerTableTest {
+
+    private static final Invoker FALLBACK = ic -> "fallback";
+
+    @Test
+    public void testLookup() throws Exception {
+        System.out.println("testLookup");
+        Map<Method, Invoker> wrappers = new HashMap<>();
+        Invoker a = ic -> "a";
+        Invoker b = ic -> "b";
+        Invoker c = ic -> "c";
+        wrappers.put(Methods.class.getDeclaredMethod("a"), a);
+        wrappers.put(Methods.class.getDeclaredMethod("b", int.class), b);
+        wrappers.put(String.class.getDeclaredMethod("length"), c);
+        InvokerTable table = new InvokerTable(wrappers);
+
+        // getDeclaredMethod() returns a new copy every time
+        assertThat(table.lookup(Methods.class.getDeclaredMethod("a"), FALLBACK), sameInstance(a));
+        assertThat(table.lookup(Methods.class.getDeclaredMethod("b", int.class), FALLBACK), sameInstance(b));
+        assertThat(table.lookup(String.class.getDeclaredMethod("length"), FALLBACK), sameInstance(c));
+        assertThat(table.lookup(Methods.class.getDeclaredMethod("b", String.class), FALLBACK), sameInstance(FALLBACK));
+        assertThat(table.lookup(Object.class.getDeclaredMethod("hashCode"), FALLBACK), sameInstance(FALLBACK));
+        assertThat(InvokerTable.EMPTY.lookup(Methods.class.getDeclaredMethod("a"), FALLBACK), sameInstance(FALLBACK));
+    }
+
+    private static class Methods {
+
+        void a() {
+        }
+
+        void b(int i) {
+        }
+
+        void b(String s) {
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class LogTemplateTest {
+
+    @Test
+    public void testRender() throws Exception {
+        System.out.println("testRender");
+        LogTemplate withResult = new LogTemplate("a.B", "c", new int[] {0, 2}, true, NanoUnit.MS);
+        assertThat(withResult.render(2_500_000L, new Object[] {"x", 1, new int[] {1, 2}}, new String[] {"y", "z"}),
+                   is("a.B.c([x], [[1, 2]]) = [[y, z]] (3ms)"));
+        assertThat(withResult.render(400_000L, new Object[] {null, 1, "{}"}, null),
+                   is("a.B.c([null], [{}]) = [null] (0ms)"));
+
+        LogTemplate noResult = new LogTemplate("a.B", "c", new int[] {}, false, NanoUnit.US);
+        assertThat(noResult.render(2_500L, new Object[] {"x"}, "ignored"),
+                   is("a.B.c() (3µs)"));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class RateLimiterTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void testRateLimit() throws Exception {
+        System.out.println("testRateLimit");
+        long now = 123_456_789L;
+        RateLimiter limiter = new RateLimiter(10, 1.0, now);
+        // A full second of lines
+        for (int i = 0 ; i < 10 ; i++) {
+            assertThat(limiter.allow(now), is(true));
+        }
+        assertThat(limiter.allow(now), is(false));
+        assertThat(limiter.allow(now + 50 * MS), is(false));
+        // One line per 100ms
+        assertThat(limiter.allow(now + 100 * MS), is(true));
+        assertThat(limiter.allow(now + 100 * MS), is(false));
+        assertThat(limiter.takeSuppressed(), is(3L));
+        assertThat(limiter.takeSuppressed(), is(0L));
+        // Refilled
+        now += 2_000 * MS;
+        for (int i = 0 ; i < 10 ; i++) {
+            assertThat(limiter.allow(now), is(true));
+        }
+        assertThat(limiter.allow(now), is(false));
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        System.out.println("testSample");
+        RateLimiter none = new RateLimiter(0, 0.0, 0L);
+        RateLimiter all = new RateLimiter(0, 1.0, 0L);
+        for (int i = 0 ; i < 100 ; i++) {
+            assertThat(none.allow(i), is(false));
+            assertThat(all.allow(i), is(true));
+        }
+        assertThat(none.takeSuppressed(), is(100L));
+        assertThat(all.takeSuppressed(), is(0L));
+    }
+}
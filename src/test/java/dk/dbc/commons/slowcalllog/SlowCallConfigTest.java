@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import ch.qos.logback.classic.Logger;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class SlowCallConfigTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void testThreshold() throws Exception {
+        System.out.println("testThreshold");
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 0.5, new LatencyHistogram(), "20ms", Level.ERROR);
+        assertThat(config.thresholdInNs(), is(10 * MS));
+
+        config.setThreshold("off");
+        assertThat(config.thresholdInNs(), is(Long.MAX_VALUE));
+        config.setEnabled(true);
+        assertThat(config.thresholdInNs(), is(10 * MS));
+
+        config.setThreshold("ALWAYS");
+        assertThat(config.thresholdInNs(), is(0L));
+
+        assertThrows(IllegalArgumentException.class, () -> config.setThreshold("20 parsecs"));
+        assertThat(config.thresholdInNs(), is(0L));
+    }
+
+    @Test
+    public void testOffAtDeployment() throws Exception {
+        System.out.println("testOffAtDeployment");
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 0.5, new LatencyHistogram(), " OFF ", Level.ERROR);
+        assertThat(config.thresholdInNs(), is(Long.MAX_VALUE));
+        config.setEnabled(true);
+        assertThat(config.thresholdInNs(), is(Long.MAX_VALUE));
+
+        config.setThreshold("20ms");
+        assertThat(config.thresholdInNs(), is(10 * MS));
+    }
+
+    @Test
+    public void testOffWithDisabledLevel() throws Exception {
+        System.out.println("testOffWithDisabledLevel");
+        Logger logger = (Logger) LoggerFactory.getLogger(SlowCallLog.class);
+        ch.qos.logback.classic.Level oldLevel = logger.getLevel();
+        logger.setLevel(ch.qos.logback.classic.Level.ERROR);
+        try {
+            SlowCallConfig config = SlowCallConfig.of("m()", "X", 1.0, new LatencyHistogram(), "off", Level.WARN);
+            assertThat(config.thresholdInNs(), is(Long.MAX_VALUE));
+            assertThrows(IllegalStateException.class, () -> config.setThreshold("20ms"));
+            assertThat(config.thresholdInNs(), is(Long.MAX_VALUE));
+            assertThrows(IllegalStateException.class, () -> SlowCallConfig.of("m()", "X", 1.0, new LatencyHistogram(), "20ms", Level.WARN));
+
+            logger.setLevel(ch.qos.logback.classic.Level.WARN);
+            config.setThreshold("20ms");
+            assertThat(config.thresholdInNs(), is(20 * MS));
+        } finally {
+            logger.setLevel(oldLevel);
+        }
+    }
+
+    @Test
+    public void testLevel() throws Exception {
+        System.out.println("testLevel");
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 1.0, new LatencyHistogram(), "20ms", Level.ERROR);
+        config.setLevel(Level.WARN);
+        assertThat(config.state().level(), is(Level.WARN));
+        assertThat(config.thresholdInNs(), is(20 * MS));
+    }
+
+    @Test
+    public void testReplacedAdaptiveIsIgnored() throws Exception {
+        System.out.println("testReplacedAdaptiveIsIgnored");
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 1.0, new LatencyHistogram(), "p99:1ms:1s", Level.ERROR);
+        AdaptiveThreshold adaptive = config.state().adaptive();
+        assertThat(adaptive, notNullValue());
+        config.adapt(adaptive, 5 * MS);
+        assertThat(config.thresholdInNs(), is(5 * MS));
+
+        config.setThreshold("20ms");
+        assertThat(config.state().adaptive(), nullValue());
+        config.adapt(adaptive, 5 * MS);
+        assertThat(config.thresholdInNs(), is(20 * MS));
+    }
+}
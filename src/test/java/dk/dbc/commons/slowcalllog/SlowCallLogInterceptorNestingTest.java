@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import dk.dbc.commons.slowcalllog.SlowCallLogInterceptor.Invoker;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import dk.dbc.commons.stopwatch.Clock;
+import dk.dbc.commons.stopwatch.StopWatch;
+import jakarta.interceptor.InvocationContext;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Run with STOPWATCH_NESTING=self (the nesting-test execution in pom.xml)
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class SlowCallLogInterceptorNestingTest {
+
+    @Test
+    public void testStopWatchTimerNests() throws Exception {
+        System.out.println("testStopWatchTimerNests");
+        assertThat(System.getenv("STOPWATCH_NESTING"), is("self"));
+        LatencyHistogram histogram = new LatencyHistogram();
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 1.0, histogram, "off", Level.ERROR);
+        SlowCallOutput output = new SlowCallOutput("a.B", "m", config, SlowCallLog.MdcMode.COPY);
+        CallTree.Site site = new CallTree.Site("a.B.m", false, output::log, NanoUnit.of("ms"));
+        Invoker invoker = SlowCallLogInterceptor.makeInvoker(config, histogram, site, StopWatch.key("Dao_find"), (time, params, result) -> {
+                                                         }, (time, params, result) -> {
+                                                         });
+
+        Logger logger = (Logger) LoggerFactory.getLogger(StopWatch.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            try (StopWatch.Scope scope = StopWatch.scope()) {
+                try (Clock body = scope.getStopWatch().time("body")) {
+                    sleep(5);
+                    invoker.call(context(() -> {
+                        try (Clock sql = StopWatch.current().time("sql")) {
+                            sleep(5);
+                        }
+                        sleep(5);
+                        return "row";
+                    }));
+                }
+            }
+            assertThat(appender.list.size(), is(1));
+            Map<String, String> mdc = appender.list.get(0).getMDCPropertyMap();
+            assertThat(mdc, hasEntry("Dao_find_count", "1"));
+            // The call isn't self time of body, and sql isn't self time of the call
+            assertThat(ms(mdc, "body_self_ms"), closeTo(ms(mdc, "body_ms") - ms(mdc, "Dao_find_ms"), 1e-6));
+            assertThat(ms(mdc, "Dao_find_self_ms"), closeTo(ms(mdc, "Dao_find_ms") - ms(mdc, "sql_ms"), 1e-6));
+            assertThat(ms(mdc, "sql_self_ms"), is(ms(mdc, "sql_ms")));
+        } finally {
+            logger.detachAppender(appender);
+        }
+    }
+
+    private static double ms(Map<String, String> mdc, String name) {
+        return Double.parseDouble(mdc.get(name));
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static InvocationContext context(Callable<Object> body) {
+        return (InvocationContext) Proxy.newProxyInstance(
+                InvocationContext.class.getClassLoader(),
+                new Class<?>[] {InvocationContext.class},
+                (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "proceed":
+                    return body.call();
+                case "getParameters":
+                    return new Object[] {};
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
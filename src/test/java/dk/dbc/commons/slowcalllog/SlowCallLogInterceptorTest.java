@@ -18,12 +18,37 @@
  */
 package dk.dbc.commons.slowcalllog;
 
+import java.io.IOException;
+import java.lang.reflect.Proxy;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import dk.dbc.commons.stopwatch.StopWatch;
+import jakarta.interceptor.InvocationContext;
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
 
 import static dk.dbc.commons.slowcalllog.SlowCallLogInterceptor.*;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertTimeout;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -62,4 +87,275 @@ public class SlowCallLogInterceptorTest {
                        is("java.lang.RuntimeException > java.lang.IllegalArgumentException: xxx"));
         });
     }
+
+    @Test
+    public void testAsyncInvoker() throws Exception {
+        System.out.println("testAsyncInvoker");
+        assertThat(isAsync(CompletableFuture.class), is(true));
+        assertThat(isAsync(CompletionStage.class), is(true));
+        assertThat(isAsync(Future.class), is(true));
+        assertThat(isAsync(String.class), is(false));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 1.0, histogram, "always", Level.ERROR);
+        SlowCallOutput output = new SlowCallOutput("a.B", "m", config, SlowCallLog.MdcMode.COPY);
+        CallTree.Site site = new CallTree.Site("a.B.m", false, output::log, NanoUnit.of("ms"));
+        List<String> lines = new ArrayList<>();
+        Invoker invoker = makeAsyncInvoker(config, histogram, site, null,
+                                           (time, params, result) -> lines.add("ok: " + result),
+                                           (time, params, result) -> lines.add("failed: " + result));
+
+        CompletableFuture<String> ok = new CompletableFuture<>();
+        assertThat(invoker.call(context(ok)), is(ok));
+        assertThat(lines, Matchers.empty());
+        ok.complete("value");
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        invoker.call(context(failed));
+        failed.completeExceptionally(new IOException("broken"));
+        // Not a CompletionStage, timed until returned
+        invoker.call(context(new FutureTask<>(() -> "task")));
+
+        assertThat(lines, contains(is("ok: value"), is("failed: java.io.IOException: broken"), Matchers.startsWith("ok: java.util.concurrent.FutureTask")));
+        assertThat(histogram.snapshot().getOkCount(), is(2L));
+        assertThat(histogram.snapshot().getExceptionCount(), is(1L));
+    }
+
+    @Test
+    public void testAsyncInvokerParametersReadBeforeReturn() throws Exception {
+        System.out.println("testAsyncInvokerParametersReadBeforeReturn");
+        LatencyHistogram histogram = new LatencyHistogram();
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 1.0, histogram, "always", Level.ERROR);
+        SlowCallOutput output = new SlowCallOutput("a.B", "m", config, SlowCallLog.MdcMode.COPY);
+        CallTree.Site site = new CallTree.Site("a.B.m", false, output::log, NanoUnit.of("ms"));
+        List<String> lines = new ArrayList<>();
+        Invoker invoker = makeAsyncInvoker(config, histogram, site, null,
+                                           (time, params, result) -> lines.add(params[0] + ": " + result),
+                                           (time, params, result) -> lines.add(params[0] + " failed: " + result));
+
+        CompletableFuture<String> ok = new CompletableFuture<>();
+        AtomicBoolean returned = new AtomicBoolean();
+        InvocationContext ic = (InvocationContext) Proxy.newProxyInstance(
+                InvocationContext.class.getClassLoader(),
+                new Class<?>[] {InvocationContext.class},
+                (proxy, method, args) -> {
+            if (returned.get())
+                throw new IllegalStateException("InvocationContext used after the call");
+            switch (method.getName()) {
+                case "proceed":
+                    return ok;
+                case "getParameters":
+                    return new Object[] {"key"};
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        invoker.call(ic);
+        returned.set(true);
+        ok.complete("value");
+        assertThat(lines, contains(is("key: value")));
+
+        // Logging disabled, the parameters aren't needed
+        config = SlowCallConfig.of("m()", "X", 1.0, histogram, "off", Level.ERROR);
+        Invoker off = makeAsyncInvoker(config, histogram, site, null,
+                                       (time, params, result) -> lines.add("off: " + result),
+                                       (time, params, result) -> lines.add("off failed: " + result));
+        CompletableFuture<String> quiet = new CompletableFuture<>();
+        off.call((InvocationContext) Proxy.newProxyInstance(
+                InvocationContext.class.getClassLoader(),
+                new Class<?>[] {InvocationContext.class},
+                (proxy, method, args) -> {
+            if (method.getName().equals("proceed"))
+                return quiet;
+            throw new UnsupportedOperationException(method.getName());
+        }));
+        quiet.complete("value");
+        assertThat(lines, contains(is("key: value")));
+    }
+
+    @Test
+    public void testStopWatchTimer() throws Exception {
+        System.out.println("testStopWatchTimer");
+        assertThat(timerName(Dao.class.getMethod("find", String.class)), is("Dao_find"));
+        class Local {
+
+            public void run() {
+            }
+        }
+        Runnable anonymous = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        assertThat(timerName(Local.class.getMethod("run")), allOf(startsWith(SlowCallLogInterceptorTest.class.getName() + "$"), endsWith("Local_run")));
+        assertThat(timerName(anonymous.getClass().getMethod("run")), startsWith(SlowCallLogInterceptorTest.class.getName() + "$"));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        SlowCallConfig config = SlowCallConfig.of("m()", "X", 1.0, histogram, "off", Level.ERROR);
+        SlowCallOutput output = new SlowCallOutput("a.B", "m", config, SlowCallLog.MdcMode.COPY);
+        CallTree.Site site = new CallTree.Site("a.B.m", false, output::log, NanoUnit.of("ms"));
+        StopWatch.Key timer = StopWatch.key(timerName(Dao.class.getMethod("find", String.class)));
+        Invoker invoker = makeInvoker(config, histogram, site, timer, (time, params, result) -> {
+                              }, (time, params, result) -> {
+                              });
+
+        Logger logger = (Logger) LoggerFactory.getLogger(StopWatch.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            // No StopWatch
+            invoker.call(context("value"));
+            try (StopWatch.Scope scope = StopWatch.scope()) {
+                invoker.call(context("value"));
+                assertThrows(IOException.class, () -> invoker.call(failing(new IOException("broken"))));
+            }
+            try (StopWatch.Scope scope = StopWatch.scope()) {
+                invoker.call(context("value"));
+            }
+            // Scopes are gone, no StopWatch again
+            invoker.call(context("value"));
+
+            assertThat(appender.list.size(), is(2));
+            assertThat(appender.list.get(0).getMDCPropertyMap(), allOf(hasEntry("Dao_find_count", "2"), hasKey("Dao_find_ms")));
+            assertThat(appender.list.get(1).getMDCPropertyMap(), hasEntry("Dao_find_count", "1"));
+            assertThat(histogram.snapshot().getCount(), is(5L));
+            assertThat(histogram.snapshot().getExceptionCount(), is(1L));
+        } finally {
+            logger.detachAppender(appender);
+        }
+    }
+
+    @Test
+    public void testClassLevelAnnotation() throws Exception {
+        System.out.println("testClassLevelAnnotation");
+        SlowCallLog classLevel = Dao.class.getAnnotation(SlowCallLog.class);
+        assertThat(annotationFor(Dao.class.getMethod("find", String.class), classLevel), is(classLevel));
+        assertThat(annotationFor(Dao.class.getMethod("store", String.class), classLevel).level(), is(Level.INFO));
+        assertThat(annotationFor(Dao.class.getDeclaredMethod("helper"), classLevel), nullValue());
+        assertThat(annotationFor(Dao.class.getMethod("name"), classLevel), nullValue());
+        assertThat(annotationFor(Dao.class.getMethod("create"), classLevel), nullValue());
+        assertThat(annotationFor(Dao.class.getMethod("hashCode"), classLevel), nullValue());
+        assertThat(annotationFor(Dao.class.getMethod("find", String.class), null), nullValue());
+        // Annotations from an annotated type, that can differ from the class'
+        SlowCallLog own = Dao.class.getMethod("store", String.class).getAnnotation(SlowCallLog.class);
+        assertThat(annotationFor(own, Dao.class.getMethod("find", String.class), classLevel), is(own));
+        assertThat(annotationFor(null, Dao.class.getMethod("store", String.class), classLevel), is(classLevel));
+        assertThat(annotationFor(own, Dao.class.getMethod("create"), null), is(own));
+    }
+
+    @Test
+    public void testClassLevelParameters() throws Exception {
+        System.out.println("testClassLevelParameters");
+        assertThat(classLevelError(null, Dao.class), nullValue());
+        assertThat(classLevelError(Dao.class.getAnnotation(SlowCallLog.class), Dao.class), nullValue());
+        String error = classLevelError(WithParameters.class.getAnnotation(SlowCallLog.class), WithParameters.class);
+        assertThat(error, containsString("parameters=[0, 2]"));
+        assertThat(error, containsString(WithParameters.class.getName()));
+    }
+
+    @Test
+    public void testMdcMode() throws Exception {
+        System.out.println("testMdcMode");
+        assertThat(mdcMode(SlowCallLog.MdcMode.DEFAULT, null), is(SlowCallLog.MdcMode.COPY));
+        assertThat(mdcMode(SlowCallLog.MdcMode.DEFAULT, " Event "), is(SlowCallLog.MdcMode.EVENT));
+        assertThat(mdcMode(SlowCallLog.MdcMode.DELTA, "event"), is(SlowCallLog.MdcMode.DELTA));
+        assertThrows(IllegalArgumentException.class, () -> mdcMode(SlowCallLog.MdcMode.DEFAULT, "unknown"));
+        assertThat(checkMdcMode(SlowCallLog.MdcMode.EVENT, true), is(SlowCallLog.MdcMode.EVENT));
+        assertThat(checkMdcMode(SlowCallLog.MdcMode.COPY, false), is(SlowCallLog.MdcMode.COPY));
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> checkMdcMode(SlowCallLog.MdcMode.EVENT, false));
+        assertThat(ex.getMessage(), containsString("slf4j-api 2.x"));
+    }
+
+    @Test
+    public void testDisplayName() throws Exception {
+        System.out.println("testDisplayName");
+        String a = displayName(Overloads.class.getMethod("find", A.Key.class));
+        String b = displayName(Overloads.class.getMethod("find", B.Key.class, int[].class));
+        assertThat(a, is("dk.dbc.commons.slowcalllog.SlowCallLogInterceptorTest.Overloads.find(dk.dbc.commons.slowcalllog.SlowCallLogInterceptorTest.A.Key)"));
+        assertThat(b, is("dk.dbc.commons.slowcalllog.SlowCallLogInterceptorTest.Overloads.find(dk.dbc.commons.slowcalllog.SlowCallLogInterceptorTest.B.Key, int[])"));
+    }
+
+    public static class A {
+
+        public static class Key {
+        }
+    }
+
+    public static class B {
+
+        public static class Key {
+        }
+    }
+
+    public static class Overloads {
+
+        public void find(A.Key key) {
+        }
+
+        public void find(B.Key key, int[] more) {
+        }
+    }
+
+    @SlowCallLog(level = Level.ERROR)
+    @SlowCallLog(parameters = {0, 2})
+    public static class WithParameters {
+
+        public void one(String a) {
+        }
+    }
+
+    public static class Dao {
+
+        public String find(String key) {
+            return key;
+        }
+
+        @SlowCallLog(level = Level.INFO)
+        public void store(String value) {
+        }
+
+        String helper() {
+            return "";
+        }
+
+        public final String name() {
+            return "dao";
+        }
+
+        public static Dao create() {
+            return new Dao();
+        }
+    }
+
+    private static InvocationContext failing(Exception failure) {
+        return (InvocationContext) Proxy.newProxyInstance(
+                InvocationContext.class.getClassLoader(),
+                new Class<?>[] {InvocationContext.class},
+                (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "proceed":
+                    throw failure;
+                case "getParameters":
+                    return new Object[] {};
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static InvocationContext context(Object result) {
+        return (InvocationContext) Proxy.newProxyInstance(
+                InvocationContext.class.getClassLoader(),
+                new Class<?>[] {InvocationContext.class},
+                (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "proceed":
+                    return result;
+                case "getParameters":
+                    return new Object[] {};
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import java.util.HashMap;
+import java.util.Map;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import dk.dbc.commons.statistics.LatencyHistogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.event.KeyValuePair;
+import org.slf4j.event.Level;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class SlowCallOutputTest {
+
+    private final Logger slowCallLogger = (Logger) LoggerFactory.getLogger(SlowCallLog.class);
+    private ListAppender<ILoggingEvent> lines;
+
+    @BeforeEach
+    public void setUp() {
+        lines = new ListAppender<>();
+        lines.start();
+        slowCallLogger.addAppender(lines);
+        MDC.clear();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        slowCallLogger.detachAppender(lines);
+        MDC.clear();
+    }
+
+    @Test
+    public void testDeltaRestoresMdc() throws Exception {
+        System.out.println("testDeltaRestoresMdc");
+        MDC.put("trackingId", "t");
+        MDC.put(SlowCallOutput.MDC_DURATION, "outer");
+        MDC.put(SlowCallOutput.MDC_CLASS, "x.Y");
+
+        output(SlowCallLog.MdcMode.DELTA).log(2_500_000L, "line");
+
+        assertThat(lines.list.size(), is(1));
+        assertThat(lines.list.get(0).getMDCPropertyMap(), is(Map.of("trackingId", "t",
+                                                                    SlowCallOutput.MDC_DURATION, "2.5",
+                                                                    SlowCallOutput.MDC_CLASS, "a.B",
+                                                                    SlowCallOutput.MDC_METHOD, "c")));
+        assertThat(MDC.getCopyOfContextMap(), is(Map.of("trackingId", "t",
+                                                         SlowCallOutput.MDC_DURATION, "outer",
+                                                         SlowCallOutput.MDC_CLASS, "x.Y")));
+    }
+
+    @Test
+    public void testDeltaRemovesAbsentKeys() throws Exception {
+        System.out.println("testDeltaRemovesAbsentKeys");
+        MDC.put("trackingId", "t");
+
+        output(SlowCallLog.MdcMode.DELTA).logSummary("summary", 3, 30_000_000L, 20_000_000L);
+
+        assertThat(lines.list.get(0).getMDCPropertyMap(), allOf(hasEntry(SlowCallOutput.MDC_SLOW_CALLS, "3"),
+                                                                hasEntry(SlowCallOutput.MDC_METHOD, "c")));
+        assertThat(MDC.getCopyOfContextMap(), is(Map.of("trackingId", "t")));
+    }
+
+    @Test
+    public void testEventLeavesMdcAlone() throws Exception {
+        System.out.println("testEventLeavesMdcAlone");
+        MDC.put("trackingId", "t");
+        MDC.put(SlowCallOutput.MDC_CLASS, "x.Y");
+
+        output(SlowCallLog.MdcMode.EVENT).log(2_500_000L, "line");
+
+        assertThat(MDC.getCopyOfContextMap(), is(Map.of("trackingId", "t", SlowCallOutput.MDC_CLASS, "x.Y")));
+        ILoggingEvent event = lines.list.get(0);
+        assertThat(event.getMDCPropertyMap(), not(hasKey(SlowCallOutput.MDC_DURATION)));
+        Map<String, Object> values = new HashMap<>();
+        for (KeyValuePair pair : event.getKeyValuePairs()) {
+            values.put(pair.key, pair.value);
+        }
+        assertThat(values.get(SlowCallOutput.MDC_DURATION), is(2.5));
+        assertThat(values.get(SlowCallOutput.MDC_CLASS), is("a.B"));
+        assertThat(values.get(SlowCallOutput.MDC_METHOD), is("c"));
+    }
+
+    private static SlowCallOutput output(SlowCallLog.MdcMode mode) {
+        SlowCallConfig config = SlowCallConfig.of("a.B.c()", "X", 1.0, new LatencyHistogram(), "always", Level.ERROR);
+        return new SlowCallOutput("a.B", "c", config, mode);
+    }
+}
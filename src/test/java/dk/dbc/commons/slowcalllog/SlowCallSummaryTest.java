@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.slowcalllog;
+
+import dk.dbc.commons.statistics.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+import org.slf4j.event.Level;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class SlowCallSummaryTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void testTake() throws Exception {
+        System.out.println("testTake");
+        SlowCallSummary summary = summary(3);
+        LogTemplate template = new LogTemplate("a.B", "c", new int[] {0}, false, NanoUnit.of("ms"));
+        for (int i : new int[] {5, 1, 9, 3, 7, 2}) {
+            summary.add(i * MS, template, new Object[] {i}, null);
+        }
+
+        SlowCallSummary.Window window = summary.take();
+        assertThat(window.count, is(6L));
+        assertThat(window.totalNs, is(27 * MS));
+        assertThat(window.maxNs, is(9 * MS));
+        assertThat(window.slowest, arrayContaining("a.B.c([9]) (9ms)", "a.B.c([7]) (7ms)", "a.B.c([5]) (5ms)"));
+
+        // New window
+        summary.add(MS, template, new Object[] {1}, null);
+        window = summary.take();
+        assertThat(window.count, is(1L));
+        assertThat(window.maxNs, is(MS));
+        assertThat(window.slowest, arrayContaining("a.B.c([1]) (1ms)"));
+
+        summary.run(); // Empty window isn't logged
+    }
+
+    @Test
+    public void testNoTop() throws Exception {
+        System.out.println("testNoTop");
+        SlowCallSummary summary = summary(0);
+        LogTemplate template = new LogTemplate("a.B", "c", new int[] {}, false, NanoUnit.of("ms"));
+        summary.add(MS, template, new Object[] {}, null);
+        SlowCallSummary.Window window = summary.take();
+        assertThat(window.count, is(1L));
+        assertThat(window.slowest, emptyArray());
+
+        assertThrows(IllegalArgumentException.class, () -> summary(-1));
+    }
+
+    private static SlowCallSummary summary(int top) {
+        SlowCallConfig config = SlowCallConfig.of("a.B.c()", "X", 1.0, new LatencyHistogram(), "always", Level.ERROR);
+        SlowCallOutput output = new SlowCallOutput("a.B", "c", config, SlowCallLog.MdcMode.COPY);
+        return new SlowCallSummary("a.B.c", "10s", top, output);
+    }
+}
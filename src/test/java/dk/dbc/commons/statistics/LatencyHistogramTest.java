@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of slow-call-log
+ *
+ * slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.statistics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        System.out.println("testBuckets");
+        assertThat(LatencyHistogram.bucket(0), is(0));
+        assertThat(LatencyHistogram.bucket(1023), is(0));
+        assertThat(LatencyHistogram.bucket(1024), is(1));
+        assertThat(LatencyHistogram.bucket(Long.MAX_VALUE), is(LatencyHistogram.BUCKETS - 1));
+        for (long ns = 1 ; ns < 1L << 42 ; ns = ns * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucket(ns);
+            assertThat(ns, lessThanOrEqualTo(LatencyHistogram.upperBound(bucket)));
+            if (bucket > 0) {
+                assertThat(ns, greaterThan(LatencyHistogram.upperBound(bucket - 1)));
+                assertThat(LatencyHistogram.upperBound(bucket), lessThanOrEqualTo(ns + ns / 8));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        System.out.println("testSnapshot");
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1 ; i <= 1000 ; i++) {
+            histogram.record(i * 1_000_000L, i % 10 == 0);
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1000L));
+        assertThat(snapshot.getExceptionCount(), is(100L));
+        assertThat(snapshot.getOkCount(), is(900L));
+        assertThat(snapshot.getMax(), is(1_000_000_000L));
+        assertThat((double) snapshot.getP50(), closeTo(500_000_000.0, 62_500_000.0));
+        assertThat((double) snapshot.getP99(), closeTo(990_000_000.0, 123_750_000.0));
+        assertThat(snapshot.getPercentile(100.0), is(1_000_000_000L));
+
+        // Exception counted before its duration
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        counts[1] = 1;
+        snapshot = new LatencySnapshot(counts, 2, 1024);
+        assertThat(snapshot.getExceptionCount(), is(1L));
+        assertThat(snapshot.getOkCount(), is(0L));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class NestedClockTest {
+
+    @Test
+    public void testSelfTime() throws Exception {
+        System.out.println("testSelfTime");
+        StopWatch stopWatch = new StopWatch();
+        ConcurrentMap<String, TimerEntry> timers = new ConcurrentHashMap<>();
+        TimerEntry body = timers.computeIfAbsent("body", TimerEntry::new);
+        TimerEntry parse = timers.computeIfAbsent("parse_url", TimerEntry::new);
+        try (Clock b = new NestedClock(stopWatch, timers, body, false).start()) {
+            sleep(5);
+            try (Clock p = new NestedClock(stopWatch, timers, parse, false).start()) {
+                sleep(20);
+            }
+        }
+        assertThat(parse.count.sum(), is(1L));
+        assertThat(parse.selfNs.sum(), is(parse.ns.sum()));
+        assertThat(body.ns.sum(), greaterThanOrEqualTo(parse.ns.sum()));
+        assertThat(body.selfNs.sum(), is(body.ns.sum() - parse.ns.sum()));
+        assertThat(body.selfNs.sum(), lessThan(parse.ns.sum()));
+    }
+
+    @Test
+    public void testPaths() throws Exception {
+        System.out.println("testPaths");
+        StopWatch stopWatch = new StopWatch();
+        ConcurrentMap<String, TimerEntry> timers = new ConcurrentHashMap<>();
+        TimerEntry body = timers.computeIfAbsent("body", TimerEntry::new);
+        TimerEntry parse = timers.computeIfAbsent("parse_url", TimerEntry::new);
+        NestedClock reused = new NestedClock(stopWatch, timers, parse, true);
+        try (Clock b = new NestedClock(stopWatch, timers, body, true).start()) {
+            for (int i = 0 ; i < 3 ; i++) {
+                try (Clock p = reused.start()) {
+                }
+            }
+        }
+        try (Clock p = reused.start()) {
+        }
+        assertThat(timers.keySet(), containsInAnyOrder("body", "parse_url", "body.parse_url"));
+        assertThat(timers.get("body.parse_url").count.sum(), is(3L));
+        assertThat(parse.count.sum(), is(1L));
+        assertThat(body.count.sum(), is(1L));
+    }
+
+    @Test
+    public void testOtherStopWatchIsNotAParent() throws Exception {
+        System.out.println("testOtherStopWatchIsNotAParent");
+        ConcurrentMap<String, TimerEntry> timers = new ConcurrentHashMap<>();
+        TimerEntry outer = timers.computeIfAbsent("outer", TimerEntry::new);
+        TimerEntry inner = timers.computeIfAbsent("inner", TimerEntry::new);
+        TimerEntry after = timers.computeIfAbsent("after", TimerEntry::new);
+        TimerEntry across = timers.computeIfAbsent("across", TimerEntry::new);
+        StopWatch request = new StopWatch();
+        try (Clock o = new NestedClock(request, timers, outer, true).start()) {
+            try (Clock i = new NestedClock(new StopWatch(), timers, inner, true).start()) {
+                sleep(5);
+                // Nested in outer, through the other StopWatch's clock
+                try (Clock a = new NestedClock(request, timers, across, true).start()) {
+                    sleep(5);
+                }
+            }
+            // The outer clock is still on the stack after the other StopWatch's clock closed
+            try (Clock a = new NestedClock(request, timers, after, true).start()) {
+                sleep(5);
+            }
+        }
+        assertThat(timers.keySet(), containsInAnyOrder("outer", "inner", "after", "across", "outer.after", "outer.across"));
+        assertThat(inner.selfNs.sum(), is(inner.ns.sum()));
+        long children = timers.get("outer.after").ns.sum() + timers.get("outer.across").ns.sum();
+        assertThat(outer.selfNs.sum(), is(outer.ns.sum() - children));
+    }
+
+    @Test
+    public void testTimesWithoutChildrenAreSelfTime() throws Exception {
+        System.out.println("testTimesWithoutChildrenAreSelfTime");
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.add(StopWatch.key("added"), System.nanoTime(), 5_000_000L);
+        CompletableFuture<String> future = new CompletableFuture<>();
+        stopWatch.timedAsync("async", future);
+        sleep(5);
+        future.complete("x");
+
+        Map<String, Long> inclusive = new HashMap<>();
+        Map<String, Long> self = new HashMap<>();
+        stopWatch.forEachTimer((name, ns, count) -> inclusive.put(name, ns));
+        stopWatch.forEachTimerSelf((name, ns, count) -> self.put(name, ns));
+        assertThat(inclusive.get("added"), is(5_000_000L));
+        assertThat(inclusive.get("async"), greaterThan(0L));
+        assertThat(self, is(inclusive));
+    }
+
+    @Test
+    public void testNestingMode() throws Exception {
+        System.out.println("testNestingMode");
+        assertThat(StopWatch.nesting(null), is("off"));
+        assertThat(StopWatch.nesting(" Path "), is("path"));
+        assertThat(StopWatch.nesting("self"), is("self"));
+        assertThat(StopWatch.nesting("tree"), is("off"));
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class StopWatchExecutorServiceTest {
+
+    @Test
+    public void testPropagation() throws Exception {
+        System.out.println("testPropagation");
+        Logger logger = (Logger) LoggerFactory.getLogger(StopWatch.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        ExecutorService executor = new StopWatchExecutorService(Executors.newSingleThreadExecutor(), "pool");
+        try {
+            StopWatch stopWatch = new StopWatch();
+            StopWatch.bind(stopWatch);
+            MDC.put("trackingId", "abc");
+            stopWatch.importMDC();
+            CountDownLatch latch = new CountDownLatch(1);
+            Future<String> first = executor.submit(() -> {
+                latch.await();
+                return MDC.get("trackingId");
+            });
+            Future<StopWatch> second = executor.submit(StopWatch::current);
+            stopWatch.dispose();
+            assertThat(StopWatch.current(), nullValue());
+            assertThat(appender.list, empty());
+
+            latch.countDown();
+            assertThat(first.get(), is("abc"));
+            assertThat(second.get(), sameInstance(stopWatch));
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+
+            assertThat(appender.list.size(), is(1));
+            Map<String, String> mdc = appender.list.get(0).getMDCPropertyMap();
+            assertThat(mdc, hasEntry("pool_queue_count", "2"));
+            assertThat(mdc, hasEntry("pool_run_count", "2"));
+            assertThat(mdc, hasEntry("trackingId", "abc"));
+        } finally {
+            executor.shutdownNow();
+            logger.detachAppender(appender);
+            MDC.clear();
+        }
+    }
+
+    @Test
+    public void testWithoutStopWatch() throws Exception {
+        System.out.println("testWithoutStopWatch");
+        ExecutorService executor = new StopWatchExecutorService(Executors.newSingleThreadExecutor(), "pool");
+        try {
+            MDC.put("trackingId", "def");
+            Future<Map<String, String>> mdc = executor.submit(() -> new HashMap<>(MDC.getCopyOfContextMap()));
+            assertThat(mdc.get(), is(Map.of("trackingId", "def")));
+        } finally {
+            executor.shutdownNow();
+            MDC.clear();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import dk.dbc.commons.statistics.LatencySnapshot;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class StopWatchTest {
+
+    @Test
+    public void testTimersFromManyThreads() throws Exception {
+        System.out.println("testTimersFromManyThreads");
+        StopWatch stopWatch = new StopWatch();
+        IntStream.range(0, 100_000)
+                .parallel()
+                .forEach(i -> {
+                    try (Clock c = stopWatch.time(i % 2 == 0 ? "even" : "odd")) {
+                        stopWatch.timed("inner-name", () -> i);
+                    }
+                });
+        Map<String, Long> counts = counts(stopWatch);
+        assertThat(counts, is(Map.of("even", 50_000L, "odd", 50_000L, "innername", 100_000L)));
+    }
+
+    @Test
+    public void testNamesAreCleaned() throws Exception {
+        System.out.println("testNamesAreCleaned");
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.timed("a-b", () -> {
+        });
+        stopWatch.timed("ab", () -> {
+        });
+        stopWatch.timed("a.b", () -> {
+        });
+        assertThat(counts(stopWatch), is(Map.of("ab", 3L)));
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        System.out.println("testKeys");
+        StopWatch.Key key = StopWatch.key("db-call");
+        assertThat(key.getName(), is("dbcall"));
+        assertThat(StopWatch.key("db.call"), sameInstance(key));
+
+        StopWatch stopWatch = new StopWatch();
+        try (Clock c = stopWatch.time(key)) {
+            stopWatch.timed(StopWatch.key("other"), () -> {
+            });
+        }
+        stopWatch.timed("dbcall", () -> {
+        });
+        stopWatch.timedWithExceptions(key, () -> "value").value();
+        assertThat(counts(stopWatch), is(Map.of("dbcall", 3L, "other", 1L)));
+    }
+
+    @Test
+    public void testKeysInManyChunks() throws Exception {
+        System.out.println("testKeysInManyChunks");
+        StopWatch.Key[] keys = IntStream.range(0, 100)
+                .mapToObj(i -> StopWatch.key("chunked" + i))
+                .toArray(StopWatch.Key[]::new);
+        StopWatch stopWatch = new StopWatch();
+        for (int i = keys.length - 1 ; i >= 0 ; i -= 7) {
+            stopWatch.add(keys[i], System.nanoTime(), 1);
+            stopWatch.add(keys[i], System.nanoTime(), 1);
+        }
+        Map<String, Long> counts = counts(stopWatch);
+        assertThat(counts.size(), is(15));
+        assertThat(counts, hasEntry("chunked99", 2L));
+        assertThat(counts, hasEntry("chunked1", 2L));
+    }
+
+    @Test
+    public void testReusableClock() throws Exception {
+        System.out.println("testReusableClock");
+        StopWatch stopWatch = new StopWatch();
+        StopWatch.ReusableClock clock = stopWatch.clock(StopWatch.key("loop"));
+        for (int i = 0 ; i < 10 ; i++) {
+            try (Clock c = clock.start()) {
+                assertThrows(IllegalStateException.class, clock::start);
+            }
+        }
+        clock.close(); // Not running
+        assertThat(counts(stopWatch), is(Map.of("loop", 10L)));
+    }
+
+    @Test
+    public void testTimedThrowing() throws Exception {
+        System.out.println("testTimedThrowing");
+        StopWatch stopWatch = new StopWatch();
+        assertThat(stopWatch.timedThrowing("value", () -> read("x")), is("x"));
+        assertThrows(IOException.class, () -> stopWatch.timedThrowing("fail", () -> read(null)));
+        stopWatch.timedThrowing(StopWatch.key("void"), () -> {
+            read("x");
+        });
+        assertThat(counts(stopWatch), is(Map.of("value", 1L, "fail", 1L, "void", 1L)));
+    }
+
+    @Test
+    public void testOutputAsEvent() throws Exception {
+        System.out.println("testOutputAsEvent");
+        assertThat(StopWatch.outputAsEvent(null, true), is(false));
+        assertThat(StopWatch.outputAsEvent("copy", true), is(false));
+        assertThat(StopWatch.outputAsEvent(" Event ", true), is(true));
+        assertThat(StopWatch.outputAsEvent(" Event ", false), is(false));
+        assertThat(StopWatch.outputAsEvent("unknown", true), is(false));
+
+        Logger logger = (Logger) LoggerFactory.getLogger(StopWatch.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            MDC.put("thread", "value");
+            StopWatch stopWatch = new StopWatch();
+            stopWatch.setMDC("trackingId", "abc");
+            stopWatch.timed("db", () -> {
+            });
+            stopWatch.disposeAsEvent(1_500_000L);
+            assertThat(MDC.getCopyOfContextMap(), is(Map.of("thread", "value")));
+        } finally {
+            logger.detachAppender(appender);
+            MDC.clear();
+        }
+        assertThat(appender.list.size(), is(1));
+        Map<String, Object> keyValues = new HashMap<>();
+        appender.list.get(0).getKeyValuePairs().forEach(kv -> keyValues.put(kv.key, kv.value));
+        assertThat(keyValues.keySet(), containsInAnyOrder("trackingId", "db_us", "db_count", "total_us"));
+        assertThat(keyValues.get("db_count"), is(1L));
+        assertThat(keyValues.get("total_us"), is(1_500L));
+    }
+
+    @Test
+    public void testEmissionPolicy() throws Exception {
+        System.out.println("testEmissionPolicy");
+        assertThat(StopWatch.threshold(null), is(0L));
+        assertThat(StopWatch.threshold("250ms"), is(250_000_000L));
+        assertThat(StopWatch.threshold("slow"), is(0L));
+        assertThat(StopWatch.sample(null, 0), is(1.0));
+        assertThat(StopWatch.sample(null, 1), is(0.0));
+        assertThat(StopWatch.sample("0.01", 1), is(0.01));
+        assertThat(StopWatch.sample("2", 1), is(0.0));
+
+        assertThat(StopWatch.shouldLog(10, 0, 1.0), is(true));
+        assertThat(StopWatch.shouldLog(10, 10, 0.0), is(true));
+        assertThat(StopWatch.shouldLog(9, 10, 0.0), is(false));
+        long sampled = IntStream.range(0, 10_000)
+                .filter(i -> StopWatch.shouldLog(9, 10, 0.25))
+                .count();
+        assertThat(sampled, allOf(greaterThan(2_000L), lessThan(3_000L)));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        System.out.println("testStatistics");
+        assertThat(StopWatchStatistics.period(null), is(-1L));
+        assertThat(StopWatchStatistics.period("off"), is(-1L));
+        assertThat(StopWatchStatistics.period("ON"), is(0L));
+        assertThat(StopWatchStatistics.period("60s"), is(60_000_000_000L));
+        assertThat(StopWatchStatistics.period("whenever"), is(0L));
+
+        for (int i = 1 ; i <= 100 ; i++) {
+            StopWatch stopWatch = new StopWatch();
+            stopWatch.timed("db", () -> {
+            });
+            StopWatchStatistics.record("a.B.statistics", stopWatch, i * 1_000_000L);
+        }
+        Map<String, LatencySnapshot> snapshot = StopWatchStatistics.snapshot("a.B.statistics");
+        assertThat(snapshot.keySet(), contains("db", "total"));
+        assertThat(snapshot.get("db").getCount(), is(100L));
+        assertThat((double) snapshot.get("total").getP50(), closeTo(50_000_000.0, 7_000_000.0));
+        assertThat(StopWatchStatistics.snapshot().keySet(), hasItem("a.B.statistics"));
+    }
+
+    @Test
+    public void testTimedAsyncDefersTiming() throws Exception {
+        System.out.println("testTimedAsyncDefersTiming");
+        Logger logger = (Logger) LoggerFactory.getLogger(StopWatch.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            StopWatch stopWatch = new StopWatch();
+            CompletableFuture<String> first = new CompletableFuture<>();
+            CompletableFuture<String> second = new CompletableFuture<>();
+            CompletionStage<String> timed = stopWatch.timedAsync("async", first);
+            stopWatch.timedAsync(StopWatch.key("async"), second);
+            stopWatch.dispose();
+            assertThat(appender.list, empty());
+
+            first.complete("value");
+            assertThat(timed.toCompletableFuture().get(), is("value"));
+            assertThat(appender.list, empty());
+
+            MDC.put("thread", "value");
+            second.completeExceptionally(new IOException());
+            assertThat(appender.list.size(), is(1));
+            assertThat(appender.list.get(0).getMDCPropertyMap(), hasEntry("async_count", "2"));
+            assertThat(MDC.getCopyOfContextMap(), is(Map.of("thread", "value")));
+
+            // After TIMING is logged
+            stopWatch.timedAsync("late", CompletableFuture.completedFuture("x"));
+            assertThat(appender.list.stream().filter(e -> e.getMessage().equals("TIMING")).count(), is(1L));
+        } finally {
+            logger.detachAppender(appender);
+            MDC.clear();
+        }
+    }
+
+    @Test
+    public void testScope() throws Exception {
+        System.out.println("testScope");
+        Logger logger = (Logger) LoggerFactory.getLogger(StopWatch.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            for (int i = 0 ; i < 3 ; i++) {
+                try (StopWatch.Scope scope = StopWatch.scope("batch")) {
+                    assertThat(StopWatch.current(), sameInstance(scope.getStopWatch()));
+                    scope.getStopWatch().timed("item", () -> "x");
+                }
+                assertThat(StopWatch.current(), nullValue());
+            }
+            assertThat(appender.list.size(), is(3));
+            assertThat(appender.list.get(2).getMDCPropertyMap(), hasEntry("item_count", "1"));
+        } finally {
+            logger.detachAppender(appender);
+        }
+    }
+
+    @Test
+    public void testProducer() throws Exception {
+        System.out.println("testProducer");
+        StopWatchProducer producer = new StopWatchProducer();
+        StopWatch stopWatch = producer.stopWatch();
+        assertThat(StopWatch.current(), sameInstance(stopWatch));
+        producer.dispose();
+        assertThat(StopWatch.current(), nullValue());
+
+        try (StopWatch.Scope scope = StopWatch.scope()) {
+            StopWatchProducer inScope = new StopWatchProducer();
+            assertThat(inScope.stopWatch(), sameInstance(scope.getStopWatch()));
+            inScope.dispose();
+            assertThat(StopWatch.current(), sameInstance(scope.getStopWatch()));
+        }
+    }
+
+    @Test
+    public void testThreadReusedAfterAsyncRequest() throws Exception {
+        System.out.println("testThreadReusedAfterAsyncRequest");
+        Logger logger = (Logger) LoggerFactory.getLogger(StopWatch.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            StopWatchFactory factory = new StopWatchFactory();
+            StopWatchProducer producer = new StopWatchProducer();
+            CompletableFuture<String> backend = new CompletableFuture<>();
+            RequestEventListener events = pool.submit(() -> new StopWatchRequestListener().onRequest(event(RequestEvent.Type.START))).get();
+            // The resource method returns while its work is outstanding (like a suspended AsyncResponse)
+            StopWatch[] provided = pool.submit(() -> {
+                StopWatch fromJersey = factory.provide();
+                StopWatch fromCdi = producer.stopWatch();
+                fromJersey.timedAsync("backend", backend);
+                events.onEvent(event(RequestEvent.Type.RESOURCE_METHOD_FINISHED));
+                return new StopWatch[] {fromJersey, fromCdi};
+            }).get();
+            assertThat(provided[1], sameInstance(provided[0]));
+
+            // The next request on the thread doesn't get the StopWatch
+            assertThat(pool.submit(StopWatch::current).get(), nullValue());
+
+            backend.complete("x");
+            events.onEvent(event(RequestEvent.Type.FINISHED));
+            producer.dispose();
+            factory.dispose(provided[0]);
+            assertThat(appender.list.size(), is(1));
+            assertThat(appender.list.get(0).getMDCPropertyMap(), hasEntry("backend_count", "1"));
+            assertThat(pool.submit(StopWatch::current).get(), nullValue());
+        } finally {
+            pool.shutdownNow();
+            logger.detachAppender(appender);
+        }
+    }
+
+    @Test
+    public void testProducerUnboundAfterResourceMethod() throws Exception {
+        System.out.println("testProducerUnboundAfterResourceMethod");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            StopWatchProducer producer = new StopWatchProducer();
+            StopWatch stopWatch = pool.submit(() -> {
+                RequestEventListener events = new StopWatchRequestListener().onRequest(event(RequestEvent.Type.START));
+                StopWatch created = producer.stopWatch();
+                created.track();
+                events.onEvent(event(RequestEvent.Type.RESOURCE_METHOD_FINISHED));
+                return created;
+            }).get();
+            assertThat(pool.submit(StopWatch::current).get(), nullValue());
+            producer.dispose();
+            stopWatch.release();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static RequestEvent event(RequestEvent.Type type) {
+        return (RequestEvent) Proxy.newProxyInstance(
+                RequestEvent.class.getClassLoader(),
+                new Class<?>[] {RequestEvent.class},
+                (proxy, method, args) -> {
+            if (method.getName().equals("getType"))
+                return type;
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static String read(String value) throws IOException {
+        if (value == null)
+            throw new IOException("no value");
+        return value;
+    }
+
+    private static Map<String, Long> counts(StopWatch stopWatch) {
+        HashMap<String, Long> counts = new HashMap<>();
+        stopWatch.forEachTimer((name, ns, count) -> counts.put(name, count));
+        return counts;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-commons-slow-call-log
+ *
+ * dbc-commons-slow-call-log is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-commons-slow-call-log is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.commons.stopwatch;
+
+import java.io.StringWriter;
+import java.nio.file.Paths;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class TimelineTest {
+
+    @Test
+    public void testTraceEvents() throws Exception {
+        System.out.println("testTraceEvents");
+        Timeline timeline = new Timeline(2);
+        timeline.add("body", 1_000, 5_500);
+        Thread other = new Thread(() -> timeline.add("body.parse_url", 2_000, 1_000));
+        other.start();
+        other.join();
+        timeline.add("late", 9_000, 1_000);
+        assertThat(timeline.dropped(), is(1));
+
+        StringWriter writer = new StringWriter();
+        timeline.writeTo(writer, 10_000, Map.of("trackingId", "a\"b"), "my.Resource.get");
+        String json = writer.toString();
+        long tid = Thread.currentThread().getId();
+        assertThat(json, is("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[" +
+                            "{\"name\":\"total\",\"cat\":\"stopwatch\",\"ph\":\"X\",\"pid\":1,\"tid\":" + tid + ",\"ts\":0.0,\"dur\":10.0}," +
+                            "{\"name\":\"body\",\"cat\":\"stopwatch\",\"ph\":\"X\",\"pid\":1,\"tid\":" + tid + ",\"ts\":1.0,\"dur\":5.5}," +
+                            "{\"name\":\"body.parse_url\",\"cat\":\"stopwatch\",\"ph\":\"X\",\"pid\":1,\"tid\":" + other.getId() + ",\"ts\":2.0,\"dur\":1.0}" +
+                            "],\"otherData\":{\"dropped\":\"1\",\"endpoint\":\"my.Resource.get\",\"trackingId\":\"a\\\"b\"}}"));
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        System.out.println("testConfiguration");
+        assertThat(Timeline.directory(null), nullValue());
+        assertThat(Timeline.directory("OFF"), nullValue());
+        assertThat(Timeline.directory("/tmp/timelines").toString(), is("/tmp/timelines"));
+        assertThat(Timeline.threshold("1s"), is(1_000_000_000L));
+        assertThat(Timeline.threshold(null), is(0L));
+        assertThat(Timeline.threshold("soon"), is(0L));
+        assertThat(Timeline.enabled(Paths.get("/tmp/timelines"), 0L), nullValue());
+        assertThat(Timeline.enabled(Paths.get("/tmp/timelines"), 1_000_000_000L).toString(), is("/tmp/timelines"));
+        assertThat(Timeline.enabled(null, 1_000_000_000L), nullValue());
+        assertThat(Timeline.size(null), is(1024));
+        assertThat(Timeline.size("-1"), is(1024));
+        assertThat(Timeline.size("64"), is(64));
+    }
+}